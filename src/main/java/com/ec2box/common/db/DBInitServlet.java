@@ -29,8 +29,15 @@ package com.ec2box.common.db;
 
 import com.ec2box.common.util.AppConfig;
 import com.ec2box.manage.model.Auth;
+import com.ec2box.manage.util.AWSClientUtil;
 import com.ec2box.manage.util.DBUtils;
+import com.ec2box.manage.util.EC2InventoryUtil;
+import com.ec2box.manage.util.EC2RegionUtil;
 import com.ec2box.manage.util.EncryptionUtil;
+import com.ec2box.manage.util.SessionOutputUtil;
+import com.ec2box.manage.util.TerminalLogUtil;
+import com.ec2box.manage.util.ThreadPoolUtil;
+import com.ec2box.manage.util.UploadStoreUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -108,21 +115,10 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
             connection = DBUtils.getConn();
             statement = connection.createStatement();
 
+            //initial tables, later changes are versioned migrations
             ResultSet rs = statement.executeQuery("select * from information_schema.tables where upper(table_name) = 'USERS' and table_schema='PUBLIC'");
             if (rs == null || !rs.next()) {
-                statement.executeUpdate("create table if not exists users (id INTEGER PRIMARY KEY AUTO_INCREMENT, first_nm varchar, last_nm varchar, email varchar, username varchar not null unique, password varchar, auth_token varchar, auth_type varchar not null default '" + Auth.AUTH_BASIC+ "', user_type varchar not null default '" + Auth.ADMINISTRATOR + "', salt varchar, otp_secret varchar)");
-                statement.executeUpdate("create table if not exists user_theme (user_id INTEGER PRIMARY KEY, bg varchar(7), fg varchar(7), d1 varchar(7), d2 varchar(7), d3 varchar(7), d4 varchar(7), d5 varchar(7), d6 varchar(7), d7 varchar(7), d8 varchar(7), b1 varchar(7), b2 varchar(7), b3 varchar(7), b4 varchar(7), b5 varchar(7), b6 varchar(7), b7 varchar(7), b8 varchar(7), foreign key (user_id) references users(id) on delete cascade) ");
-                statement.executeUpdate("create table if not exists aws_credentials (id INTEGER PRIMARY KEY AUTO_INCREMENT, access_key varchar not null, secret_key varchar not null)");
-                statement.executeUpdate("create table if not exists ec2_keys (id INTEGER PRIMARY KEY AUTO_INCREMENT, key_nm varchar not null, ec2_region varchar not null, private_key varchar not null, aws_cred_id INTEGER, foreign key (aws_cred_id) references aws_credentials(id) on delete cascade)");
-                statement.executeUpdate("create table if not exists system (id INTEGER PRIMARY KEY AUTO_INCREMENT, display_nm varchar, instance_id varchar not null, user varchar not null, host varchar, port INTEGER not null, key_id INTEGER, region varchar not null, state varchar, instance_status varchar, system_status varchar, m_alarm INTEGER default 0, m_insufficient_data INTEGER default 0, m_ok INTEGER default 0, foreign key (key_id) references ec2_keys(id) on delete cascade)");
-                statement.executeUpdate("create table if not exists profiles (id INTEGER PRIMARY KEY AUTO_INCREMENT, nm varchar not null, tag varchar not null)");
-                statement.executeUpdate("create table if not exists user_map (user_id INTEGER, profile_id INTEGER, foreign key (user_id) references users(id) on delete cascade, foreign key (profile_id) references profiles(id) on delete cascade, primary key (user_id, profile_id))");
-
-                statement.executeUpdate("create table if not exists status (id INTEGER, user_id INTEGER, status_cd varchar not null default 'INITIAL', foreign key (id) references system(id) on delete cascade, foreign key (user_id) references users(id) on delete cascade)");
-                statement.executeUpdate("create table if not exists scripts (id INTEGER PRIMARY KEY AUTO_INCREMENT, user_id INTEGER, display_nm varchar not null, script varchar not null, foreign key (user_id) references users(id) on delete cascade)");
-
-                statement.executeUpdate("create table if not exists session_log (id BIGINT PRIMARY KEY AUTO_INCREMENT, session_tm timestamp default CURRENT_TIMESTAMP, first_nm varchar, last_nm varchar, username varchar not null, ip_address varchar)");
-                statement.executeUpdate("create table if not exists terminal_log (session_id BIGINT, instance_id INTEGER, output varchar not null, log_tm timestamp default CURRENT_TIMESTAMP, display_nm varchar not null, user varchar not null, host varchar not null, port INTEGER not null, foreign key (session_id) references session_log(id) on delete cascade)");
+                DBMigrationUtil.createTables(statement);
 
                 //if exists readfile to set default password
                 String salt = EncryptionUtil.generateSalt();
@@ -141,17 +137,60 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
             }
 
             DBUtils.closeRs(rs);
-            
+
+            //apply schema changes made after the initial tables
+            DBMigrationUtil.migrate(connection);
 
         } catch (Exception ex) {
-            log.error(ex.toString(), ex);
+            //fail startup instead of running against a partially migrated schema
+            log.error("Database schema could not be initialized: " + ex.toString(), ex);
+            throw new ServletException("Database schema could not be initialized", ex);
         }
         finally {
             DBUtils.closeStmt(statement);
             DBUtils.closeConn(connection);
         }
-        
 
+        try {
+            //start evicting unused uploads in the background
+            UploadStoreUtil.start();
+
+            //load EC2 regions and start syncing EC2 instances in the background
+            EC2RegionUtil.start();
+            EC2InventoryUtil.start();
+
+            //start writing terminal output to the audit log
+            if (SessionOutputUtil.enableInternalAudit) {
+                TerminalLogUtil.start();
+            }
+        } catch (Exception ex) {
+            log.error("Background services could not be started: " + ex.toString(), ex);
+            //destroy is not called when init fails so stop the services that did start
+            shutdownServices();
+            throw new ServletException("Background services could not be started", ex);
+        }
+
+    }
+
+    /**
+     * stops background threads when the application is shut down
+     */
+    @Override
+    public void destroy() {
+        shutdownServices();
+        super.destroy();
+    }
+
+    /**
+     * stops background services and thread pools
+     */
+    private static void shutdownServices() {
+        TerminalLogUtil.shutdown();
+        UploadStoreUtil.shutdown();
+        EC2InventoryUtil.shutdown();
+        EC2RegionUtil.shutdown();
+        AWSClientUtil.shutdown();
+        ThreadPoolUtil.shutdown();
     }
 
 }
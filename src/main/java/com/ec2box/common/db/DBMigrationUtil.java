@@ -0,0 +1,215 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.common.db;
+
+import com.ec2box.manage.db.SessionAuditDB;
+import com.ec2box.manage.model.Auth;
+import com.ec2box.manage.util.DBUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Applies versioned schema migrations at startup. Each migration runs once, in version order, and is recorded
+ * in the schema_version table. Steps must be safe to re-run since H2 commits DDL immediately.
+ */
+public class DBMigrationUtil {
+
+    private static Logger log = LoggerFactory.getLogger(DBMigrationUtil.class);
+
+    private static final List<Migration> migrationList;
+
+    /**
+     * schema step applied by a migration
+     */
+    interface MigrationStep {
+        void apply(Connection con, Statement statement) throws Exception;
+    }
+
+    /**
+     * migration version, description and step
+     */
+    static class Migration {
+        final int version;
+        final String description;
+        final MigrationStep step;
+
+        Migration(int version, String description, MigrationStep step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    static {
+        List<Migration> list = new ArrayList<>();
+
+        list.add(new Migration(1, "Store terminal output as compressed segments", (con, statement) -> {
+            statement.executeUpdate("create table if not exists terminal_log_segment (id BIGINT PRIMARY KEY AUTO_INCREMENT, session_id BIGINT, instance_id INTEGER, segment_no INTEGER not null, start_offset BIGINT not null, output_len INTEGER not null, start_tm timestamp, end_tm timestamp, display_nm varchar not null, user varchar not null, host varchar not null, port INTEGER not null, output BLOB not null, foreign key (session_id) references session_log(id) on delete cascade)");
+            statement.executeUpdate("create index if not exists terminal_log_segment_tm_idx on terminal_log_segment(session_id, instance_id, start_tm)");
+        }));
+
+        list.add(new Migration(2, "Unique system instance id", (con, statement) -> {
+            //systems are merged by instance id, remove duplicates left by earlier versions before adding the unique index
+            statement.executeUpdate("delete from system where id not in (select min(id) from system group by instance_id)");
+            statement.executeUpdate("create unique index if not exists system_instance_id_idx on system(instance_id)");
+        }));
+
+        list.add(new Migration(3, "Migrate uncompressed terminal output", (con, statement) -> {
+            ResultSet rs = statement.executeQuery("select * from information_schema.tables where upper(table_name) = 'TERMINAL_LOG' and table_schema='PUBLIC'");
+            boolean exists = rs != null && rs.next();
+            DBUtils.closeRs(rs);
+            if (exists) {
+                SessionAuditDB.migrateTerminalLogs(con);
+            }
+        }));
+
+        list.add(new Migration(4, "Indexes for status, session audit and EC2 key lookups", (con, statement) -> {
+            statement.executeUpdate("create index if not exists status_user_status_idx on status(user_id, status_cd)");
+            statement.executeUpdate("create index if not exists session_log_tm_user_idx on session_log(session_tm, username)");
+            statement.executeUpdate("create index if not exists ec2_keys_region_cred_idx on ec2_keys(ec2_region, aws_cred_id)");
+        }));
+
+        list.add(new Migration(5, "Unique terminal log segment number", (con, statement) -> {
+            //segments numbered again from 0 after the writer lost its state are renumbered in write order
+            SessionAuditDB.renumberTerminalLogSegments(con);
+            statement.executeUpdate("create unique index if not exists terminal_log_segment_no_idx on terminal_log_segment(session_id, instance_id, segment_no)");
+        }));
+
+        migrationList = Collections.unmodifiableList(list);
+    }
+
+    private DBMigrationUtil() {
+    }
+
+    /**
+     * creates the initial tables, later changes are applied by migrations
+     *
+     * @param statement DB statement
+     */
+    public static void createTables(Statement statement) throws SQLException {
+        statement.executeUpdate("create table if not exists users (id INTEGER PRIMARY KEY AUTO_INCREMENT, first_nm varchar, last_nm varchar, email varchar, username varchar not null unique, password varchar, auth_token varchar, auth_type varchar not null default '" + Auth.AUTH_BASIC+ "', user_type varchar not null default '" + Auth.ADMINISTRATOR + "', salt varchar, otp_secret varchar)");
+        statement.executeUpdate("create table if not exists user_theme (user_id INTEGER PRIMARY KEY, bg varchar(7), fg varchar(7), d1 varchar(7), d2 varchar(7), d3 varchar(7), d4 varchar(7), d5 varchar(7), d6 varchar(7), d7 varchar(7), d8 varchar(7), b1 varchar(7), b2 varchar(7), b3 varchar(7), b4 varchar(7), b5 varchar(7), b6 varchar(7), b7 varchar(7), b8 varchar(7), foreign key (user_id) references users(id) on delete cascade) ");
+        statement.executeUpdate("create table if not exists aws_credentials (id INTEGER PRIMARY KEY AUTO_INCREMENT, access_key varchar not null, secret_key varchar not null)");
+        statement.executeUpdate("create table if not exists ec2_keys (id INTEGER PRIMARY KEY AUTO_INCREMENT, key_nm varchar not null, ec2_region varchar not null, private_key varchar not null, aws_cred_id INTEGER, foreign key (aws_cred_id) references aws_credentials(id) on delete cascade)");
+        statement.executeUpdate("create table if not exists system (id INTEGER PRIMARY KEY AUTO_INCREMENT, display_nm varchar, instance_id varchar not null, user varchar not null, host varchar, port INTEGER not null, key_id INTEGER, region varchar not null, state varchar, instance_status varchar, system_status varchar, m_alarm INTEGER default 0, m_insufficient_data INTEGER default 0, m_ok INTEGER default 0, foreign key (key_id) references ec2_keys(id) on delete cascade)");
+        statement.executeUpdate("create table if not exists profiles (id INTEGER PRIMARY KEY AUTO_INCREMENT, nm varchar not null, tag varchar not null)");
+        statement.executeUpdate("create table if not exists user_map (user_id INTEGER, profile_id INTEGER, foreign key (user_id) references users(id) on delete cascade, foreign key (profile_id) references profiles(id) on delete cascade, primary key (user_id, profile_id))");
+
+        statement.executeUpdate("create table if not exists status (id INTEGER, user_id INTEGER, status_cd varchar not null default 'INITIAL', foreign key (id) references system(id) on delete cascade, foreign key (user_id) references users(id) on delete cascade)");
+        statement.executeUpdate("create table if not exists scripts (id INTEGER PRIMARY KEY AUTO_INCREMENT, user_id INTEGER, display_nm varchar not null, script varchar not null, foreign key (user_id) references users(id) on delete cascade)");
+
+        statement.executeUpdate("create table if not exists session_log (id BIGINT PRIMARY KEY AUTO_INCREMENT, session_tm timestamp default CURRENT_TIMESTAMP, first_nm varchar, last_nm varchar, username varchar not null, ip_address varchar)");
+    }
+
+    /**
+     * applies migrations newer than the current schema version. stops at the first failed migration so
+     * later steps never run against a partially migrated schema
+     *
+     * @param con DB connection
+     * @return current schema version
+     */
+    public static int migrate(Connection con) throws Exception {
+
+        Statement statement = con.createStatement();
+        try {
+            statement.executeUpdate("create table if not exists schema_version (version INTEGER PRIMARY KEY, description varchar not null, applied_tm timestamp default CURRENT_TIMESTAMP)");
+
+            int version = getVersion(con);
+            for (Migration migration : migrationList) {
+                if (migration.version > version) {
+                    log.info("Applying schema migration " + migration.version + ": " + migration.description);
+                    apply(con, statement, migration);
+                    version = migration.version;
+                }
+            }
+            return version;
+
+        } finally {
+            DBUtils.closeStmt(statement);
+        }
+    }
+
+    /**
+     * applies migration and records the version in a single transaction
+     *
+     * @param con       DB connection
+     * @param statement statement used by the migration step
+     * @param migration migration to apply
+     */
+    private static void apply(Connection con, Statement statement, Migration migration) throws Exception {
+
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            migration.step.apply(con, statement);
+
+            PreparedStatement stmt = con.prepareStatement("insert into schema_version (version, description) values (?, ?)");
+            stmt.setInt(1, migration.version);
+            stmt.setString(2, migration.description);
+            stmt.execute();
+            DBUtils.closeStmt(stmt);
+
+            con.commit();
+        } catch (Exception ex) {
+            con.rollback();
+            throw ex;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * returns the latest applied schema version
+     *
+     * @param con DB connection
+     * @return schema version or 0 if no migrations have been applied
+     */
+    public static int getVersion(Connection con) throws Exception {
+
+        int version = 0;
+        PreparedStatement stmt = con.prepareStatement("select max(version) as version from schema_version");
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next()) {
+            version = rs.getInt("version");
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+
+        return version;
+    }
+
+}
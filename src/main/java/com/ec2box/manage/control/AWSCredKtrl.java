@@ -36,11 +36,18 @@ import com.ec2box.manage.db.AWSCredDB;
 import com.ec2box.manage.model.AWSCred;
 import com.ec2box.manage.model.SortedSet;
 import com.ec2box.manage.util.AWSClientConfig;
+import com.ec2box.manage.util.AWSClientUtil;
+import com.ec2box.manage.util.EC2InventoryUtil;
+import com.ec2box.manage.util.EC2RegionUtil;
+import com.ec2box.manage.util.ThreadPoolUtil;
+import com.google.gson.Gson;
 import loophole.mvc.annotation.Kontrol;
 import loophole.mvc.annotation.MethodType;
 import loophole.mvc.annotation.Model;
 import loophole.mvc.annotation.Validate;
 import loophole.mvc.base.BaseKontroller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,6 +57,8 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class AWSCredKtrl extends BaseKontroller {
 
+    private static Logger log = LoggerFactory.getLogger(AWSCredKtrl.class);
+
     @Model(name = "awsCred")
     AWSCred awsCred;
     @Model(name = "sortedSet")
@@ -71,13 +80,45 @@ public class AWSCredKtrl extends BaseKontroller {
     @Kontrol(path = "/manage/saveAWSCred", method = MethodType.POST)
     public String saveAWSCred() {
         AWSCredDB.saveAWSCred(awsCred);
+        EC2RegionUtil.requestRefresh();
+        EC2InventoryUtil.requestRefresh();
         return "redirect:/manage/viewAWSCred.ktrl?sortedSet.orderByDirection=" + sortedSet.getOrderByDirection() + "&sortedSet.orderByField=" + sortedSet.getOrderByField();
     }
 
 
+    /**
+     * returns usage stats for cached AWS clients as a json string
+     */
+    @Kontrol(path = "/manage/getAWSClientStatsJSON", method = MethodType.GET)
+    public String getAWSClientStatsJSON() {
+        String json = new Gson().toJson(AWSClientUtil.getClientStats());
+        try {
+            getResponse().getOutputStream().write(json.getBytes());
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+    }
+
+    /**
+     * returns active terminal readers and active and queued senders as a json string
+     */
+    @Kontrol(path = "/manage/getTerminalStatsJSON", method = MethodType.GET)
+    public String getTerminalStatsJSON() {
+        String json = new Gson().toJson(ThreadPoolUtil.getTerminalStats());
+        try {
+            getResponse().getOutputStream().write(json.getBytes());
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+    }
+
     @Kontrol(path = "/manage/deleteAWSCred", method = MethodType.GET)
     public String deleteAWSCred() {
         AWSCredDB.deleteAWSCred(awsCred.getId());
+        EC2RegionUtil.requestRefresh();
+        EC2InventoryUtil.requestRefresh();
         return "redirect:/manage/viewAWSCred.ktrl?sortedSet.orderByDirection=" + sortedSet.getOrderByDirection() + "&sortedSet.orderByField=" + sortedSet.getOrderByField();
     }
 
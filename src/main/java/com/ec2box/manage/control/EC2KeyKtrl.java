@@ -28,19 +28,16 @@
 package com.ec2box.manage.control;
 
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.*;
 import com.ec2box.manage.db.AWSCredDB;
 import com.ec2box.manage.db.EC2KeyDB;
 import com.ec2box.manage.model.AWSCred;
 import com.ec2box.manage.model.EC2Key;
 import com.ec2box.manage.model.SortedSet;
-import com.ec2box.manage.util.AWSClientConfig;
+import com.ec2box.manage.util.AWSClientUtil;
+import com.ec2box.manage.util.EC2InventoryUtil;
+import com.ec2box.manage.util.EC2RegionUtil;
 import com.google.gson.Gson;
 import loophole.mvc.annotation.Kontrol;
 import loophole.mvc.annotation.MethodType;
@@ -61,7 +58,7 @@ public class EC2KeyKtrl extends BaseKontroller {
 
     public static final String REQUIRED = "Required";
     @Model(name = "ec2RegionMap")
-    public static Map<String, String> ec2RegionMap = new LinkedHashMap<>();
+    Map<String, String> ec2RegionMap = EC2RegionUtil.getRegionMap();
     private static Logger log = LoggerFactory.getLogger(EC2KeyKtrl.class);
     @Model(name = "ec2Key")
     EC2Key ec2Key;
@@ -70,25 +67,6 @@ public class EC2KeyKtrl extends BaseKontroller {
     @Model(name = "awsCredList")
     List<AWSCred> awsCredList = new ArrayList<>();
 
-    static {
-        if(ec2RegionMap.isEmpty()) {
-            for (AWSCred awsCred : AWSCredDB.getAWSCredList()) {
-                //set  AWS credentials for service
-                BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-                AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                        .withRegion(Regions.DEFAULT_REGION)
-                        .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                        .withClientConfiguration(AWSClientConfig.getClientConfig()).build();
-
-                DescribeRegionsResult regionResponse = service.describeRegions();
-                for (Region region : regionResponse.getRegions()) {
-                    ec2RegionMap.put(region.getEndpoint(), region.getRegionName());
-                }
-            }
-        }
-    }
-
-
     public EC2KeyKtrl(HttpServletRequest request, HttpServletResponse response) {
         super(request, response);
     }
@@ -97,21 +75,6 @@ public class EC2KeyKtrl extends BaseKontroller {
     public String viewEC2Keys() {
 
         awsCredList = AWSCredDB.getAWSCredList();
-        for (AWSCred awsCred : awsCredList) {
-            //set  AWS credentials for service
-            BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-
-            //create service
-            AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                    .withRegion(Regions.DEFAULT_REGION)
-                    .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                    .withClientConfiguration(AWSClientConfig.getClientConfig()).build();
-
-            DescribeRegionsResult regionResponse = service.describeRegions();
-            for (Region region : regionResponse.getRegions()) {
-                ec2RegionMap.put(region.getEndpoint(), region.getRegionName());
-            }
-        }
 
         sortedSet = EC2KeyDB.getEC2KeySet(sortedSet);
 
@@ -126,13 +89,7 @@ public class EC2KeyKtrl extends BaseKontroller {
     public String getKeyPairJSON() {
 
         AWSCred awsCred = AWSCredDB.getAWSCred(ec2Key.getAwsCredId());
-
-        //set  AWS credentials for service
-        BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-        AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                .withClientConfiguration(AWSClientConfig.getClientConfig())
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Key.getEc2Region(), ec2RegionMap.get(ec2Key.getEc2Region()))).build();
+        AmazonEC2 service = AWSClientUtil.getEC2Client(awsCred, ec2Key.getEc2Region());
 
         DescribeKeyPairsRequest describeKeyPairsRequest = new DescribeKeyPairsRequest();
 
@@ -159,14 +116,8 @@ public class EC2KeyKtrl extends BaseKontroller {
             //get AWS credentials from DB
             AWSCred awsCred = AWSCredDB.getAWSCred(ec2Key.getAwsCredId());
 
-            //set  AWS credentials for service
-            BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-
-            //create service
-            AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                    .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                    .withClientConfiguration(AWSClientConfig.getClientConfig())
-                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Key.getEc2Region(), ec2RegionMap.get(ec2Key.getEc2Region()))).build();
+            //get cached service client
+            AmazonEC2 service = AWSClientUtil.getEC2Client(awsCred, ec2Key.getEc2Region());
 
             //create key pair request
             CreateKeyPairRequest createKeyPairRequest = new CreateKeyPairRequest();
@@ -183,6 +134,7 @@ public class EC2KeyKtrl extends BaseKontroller {
 
             //add to db
             EC2KeyDB.saveEC2Key(ec2Key);
+            EC2InventoryUtil.requestRefresh();
 
         } catch (AmazonServiceException ex) {
             addError(ex.getMessage());
@@ -203,14 +155,8 @@ public class EC2KeyKtrl extends BaseKontroller {
             //get AWS credentials from DB
             AWSCred awsCred = AWSCredDB.getAWSCred(ec2Key.getAwsCredId());
 
-            //set  AWS credentials for service
-            BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-
-            //create service
-            AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                    .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                    .withClientConfiguration(AWSClientConfig.getClientConfig())
-                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Key.getEc2Region(), ec2RegionMap.get(ec2Key.getEc2Region()))).build();
+            //get cached service client
+            AmazonEC2 service = AWSClientUtil.getEC2Client(awsCred, ec2Key.getEc2Region());
 
             //describe key pair request
             DescribeKeyPairsRequest describeKeyPairsRequest = new DescribeKeyPairsRequest();
@@ -223,6 +169,7 @@ public class EC2KeyKtrl extends BaseKontroller {
             if (describeKeyPairsResult != null && describeKeyPairsResult.getKeyPairs().size() > 0) {
                 //add to db
                 EC2KeyDB.saveEC2Key(ec2Key);
+                EC2InventoryUtil.requestRefresh();
             } else {
                 addError("Imported key does not exist on AWS");
                 retVal = "/manage/view_ec2_keys.html";
@@ -243,6 +190,7 @@ public class EC2KeyKtrl extends BaseKontroller {
     @Kontrol(path = "/manage/deleteEC2Key", method = MethodType.GET)
     public String deleteEC2Key() {
         EC2KeyDB.deleteEC2Key(ec2Key.getId());
+        EC2InventoryUtil.requestRefresh();
         return "redirect:/manage/viewEC2Keys.ktrl?sortedSet.orderByDirection=" + sortedSet.getOrderByDirection() + "&sortedSet.orderByField=" + sortedSet.getOrderByField();
     }
 
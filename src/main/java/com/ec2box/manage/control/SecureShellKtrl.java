@@ -103,10 +103,9 @@ public class SecureShellKtrl extends BaseKontroller {
 
             //get status
             currentSystemStatus = SystemStatusDB.getSystemStatus(pendingSystemStatus.getId(), userId);
-            //if initial status run script
+            //retry system that needed a password or passphrase
             if (currentSystemStatus != null
-                    && (HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
+                    && (HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
                     || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))
                     ) {
 
@@ -122,13 +121,15 @@ public class SecureShellKtrl extends BaseKontroller {
 
             } else {
 
-                pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-                //if success loop through systems until finished or need password
-                while (pendingSystemStatus != null && currentSystemStatus != null && HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
-                    currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, sessionId, pendingSystemStatus, userSchSessionMap);
-                    pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
+                //connect to all remaining systems at once, systems that need a password or passphrase stay pending
+                for (HostSystem hostSystem : SSHUtil.openSSHTermsOnSystems(passphrase, password, userId, sessionId, SystemStatusDB.getPendingSystems(userId), userSchSessionMap)) {
+                    //show error for the first system that could not be connected
+                    if (HostSystem.GENERIC_FAIL_STATUS.equals(hostSystem.getStatusCd()) || HostSystem.HOST_FAIL_STATUS.equals(hostSystem.getStatusCd())) {
+                        currentSystemStatus = hostSystem;
+                        break;
+                    }
                 }
-
+                pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
 
             }
 
@@ -209,6 +210,7 @@ public class SecureShellKtrl extends BaseKontroller {
                             schSession.getChannel().disconnect();
                         if (schSession.getSession() != null)
                             schSession.getSession().disconnect();
+                        schSession.cancelReaderTask();
                         schSession.setChannel(null);
                         schSession.setSession(null);
                         schSession.setInputToChannel(null);
@@ -27,24 +27,36 @@
  */
 package com.ec2box.manage.control;
 
+import com.ec2box.common.util.AppConfig;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.ec2box.manage.db.SessionAuditDB;
 import com.ec2box.manage.db.SystemDB;
 import com.ec2box.manage.db.UserDB;
 import com.ec2box.manage.model.HostSystem;
 import com.ec2box.manage.model.SessionAudit;
 import com.ec2box.manage.model.SortedSet;
+import com.ec2box.manage.model.TerminalLog;
+import com.ec2box.manage.model.TerminalLogSegment;
 import com.ec2box.manage.model.User;
+import com.ec2box.manage.util.TerminalLogUtil;
+import com.ec2box.manage.util.TerminalOutputCleaner;
 import loophole.mvc.annotation.Kontrol;
 import loophole.mvc.annotation.MethodType;
 import loophole.mvc.annotation.Model;
 import loophole.mvc.base.BaseKontroller;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.function.Predicate;
 
 /**
  * Action to audit sessions and terminal history
@@ -53,12 +65,25 @@ public class SessionAuditKtrl extends BaseKontroller {
 
     private static Logger log = LoggerFactory.getLogger(SessionAuditKtrl.class);
 
+    //max number of lines of terminal output returned as the state when seeking a replay
+    public static final int AUDIT_REPLAY_LINES = StringUtils.isNumeric(AppConfig.getProperty("auditReplayLines")) ? Integer.parseInt(AppConfig.getProperty("auditReplayLines")) : 500;
+    //max number of chars of terminal output read before the segment at the seek time to show the terminal state
+    public static final int AUDIT_REPLAY_STATE_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditReplayStateSize")) ? Integer.parseInt(AppConfig.getProperty("auditReplayStateSize")) : 262144;
+    //max time in milliseconds of terminal output returned for each page of a replay
+    public static final long AUDIT_REPLAY_WINDOW = StringUtils.isNumeric(AppConfig.getProperty("auditReplayWindow")) ? Long.parseLong(AppConfig.getProperty("auditReplayWindow")) : 60000;
+    //max number of chars of terminal output returned for each request
+    public static final int AUDIT_PAGE_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditPageSize")) ? Integer.parseInt(AppConfig.getProperty("auditPageSize")) : 262144;
+
     @Model(name = "sortedSet")
     SortedSet sortedSet = new SortedSet();
     @Model(name = "sessionId")
     Long sessionId;
     @Model(name = "instanceId")
     Integer instanceId;
+    @Model(name = "offset")
+    Long offset;
+    @Model(name = "startTm")
+    Long startTm;
     @Model(name = "sessionAudit")
     SessionAudit sessionAudit;
     @Model(name = "systemList")
@@ -95,16 +120,253 @@ public class SessionAuditKtrl extends BaseKontroller {
     @Kontrol(path = "/manage/getJSONTermOutputForSession", method = MethodType.GET)
     public String getJSONTermOutputForSession() {
 
-        String json = new Gson().toJson(SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId));
+        getResponse().setContentType("application/json");
+        getResponse().setCharacterEncoding("UTF-8");
+        try {
+            JsonWriter writer = new JsonWriter(getResponse().getWriter());
+            writer.beginObject();
+            writer.name("instanceId").value(instanceId);
+            writer.name("output").beginArray();
+
+            //output is streamed to the response as it is read, one page at a time
+            OutputPage page = new OutputPage(writer);
+            SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId, offset, startTm == null ? null : new Timestamp(startTm), page);
+            page.finish();
+
+            writer.endArray();
+            writer.name("offset").value(page.offset == null ? offset : page.offset);
+            writer.name("nextOffset").value(page.nextOffset == null ? offset : page.nextOffset);
+            writer.name("more").value(page.length >= AUDIT_PAGE_SIZE);
+            writer.endObject();
+            writer.flush();
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+
+        return null;
+
+    }
+
+    /**
+     * returns queued, written, dropped and failed audit log counts as a json string
+     */
+    @Kontrol(path = "/manage/getAuditStatsJSON", method = MethodType.GET)
+    public String getAuditStatsJSON() {
+        String json = new Gson().toJson(TerminalLogUtil.getStats());
         try {
             getResponse().getOutputStream().write(json.getBytes());
         } catch (Exception ex) {
             log.error(ex.toString(), ex);
         }
+        return null;
+    }
+
+    @Kontrol(path = "/manage/getJSONTermReplayForSession", method = MethodType.GET)
+    public String getJSONTermReplayForSession() {
+
+        getResponse().setContentType("application/json");
+        getResponse().setCharacterEncoding("UTF-8");
+        try {
+            JsonWriter writer = new JsonWriter(getResponse().getWriter());
+            writer.beginObject();
+            writer.name("instanceId").value(instanceId);
+
+            ReplayFrames frames = new ReplayFrames(writer);
+            //seek to the time given and return the terminal state at that point before the frames that follow
+            if (offset == null) {
+                TerminalLogSegment times = SessionAuditDB.getTerminalLogTimes(sessionId, instanceId);
+                if (times != null) {
+                    Timestamp seekTm = startTm == null ? times.getStartTm() : new Timestamp(startTm);
+                    writer.name("sessionStartTm").value(times.getStartTm().getTime());
+                    writer.name("sessionEndTm").value(times.getEndTm().getTime());
+                    writer.name("startTm").value(seekTm.getTime());
+
+                    //only output shortly before the seek time is read, earlier segments are skipped without being decompressed
+                    long stateOffset = Math.max(0, SessionAuditDB.getTerminalLogOffset(sessionId, instanceId, seekTm) - AUDIT_REPLAY_STATE_SIZE);
+                    ReplayState state = new ReplayState(stateOffset > 0);
+                    SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId, stateOffset, null, seekTm, state);
+                    writer.name("state").beginArray();
+                    for (String line : state.finish()) {
+                        writer.value(line);
+                    }
+                    writer.endArray();
+
+                    writer.name("frames").beginArray();
+                    SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId, null, seekTm, frames);
+                    writer.endArray();
+                }
+            } else {
+                writer.name("frames").beginArray();
+                SessionAuditDB.getTerminalLogsForSession(sessionId, instanceId, offset, null, frames);
+                writer.endArray();
+            }
+
+            writer.name("nextOffset").value(frames.getNextOffset() == null ? offset : frames.getNextOffset());
+            writer.name("more").value(frames.full);
+            writer.endObject();
+            writer.flush();
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
 
         return null;
 
     }
 
+    /**
+     * keeps the last lines of cleaned terminal output to show the terminal as it was at the seek time
+     */
+    private static class ReplayState implements Predicate<TerminalLog> {
+
+        TerminalOutputCleaner cleaner = new TerminalOutputCleaner();
+        Deque<String> lines = new ArrayDeque<>();
+        //output read from part way through the session starts with a partial line that may hold part of an escape sequence
+        boolean skipLine;
+
+        ReplayState(boolean skipLine) {
+            this.skipLine = skipLine;
+        }
+
+        @Override
+        public boolean test(TerminalLog terminalLog) {
+            add(cleaner.clean(terminalLog.getOutput()));
+            return true;
+        }
+
+        Deque<String> finish() {
+            add(cleaner.flush());
+            return lines;
+        }
+
+        private void add(String output) {
+            int start = 0;
+            while (start < output.length()) {
+                int end = output.indexOf('\n', start) + 1;
+                if (end == 0) {
+                    end = output.length();
+                }
+                if (skipLine) {
+                    skipLine = false;
+                    start = end;
+                    continue;
+                }
+                lines.add(output.substring(start, end));
+                if (lines.size() > AUDIT_REPLAY_LINES) {
+                    lines.remove();
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * writes terminal output with its log time to the response until the page is full or the replay window has passed.
+     * the next page starts after the last complete escape sequence
+     */
+    private static class ReplayFrames implements Predicate<TerminalLog> {
+
+        JsonWriter writer;
+        TerminalOutputCleaner cleaner = new TerminalOutputCleaner(false);
+        Long firstTm;
+        Long startOffset;
+        long length = 0;
+        boolean full = false;
+
+        ReplayFrames(JsonWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean test(TerminalLog terminalLog) {
+            long logTm = terminalLog.getLogTm().getTime();
+            if (firstTm == null) {
+                firstTm = logTm;
+            } else if (logTm - firstTm > AUDIT_REPLAY_WINDOW || length >= AUDIT_PAGE_SIZE) {
+                //left for the next page
+                full = true;
+                return false;
+            }
+            if (startOffset == null) {
+                startOffset = terminalLog.getOffset();
+            }
+            length = length + terminalLog.getOutput().length();
+            try {
+                String output = cleaner.clean(terminalLog.getOutput());
+                if (!output.isEmpty()) {
+                    writer.beginObject();
+                    writer.name("tm").value(logTm);
+                    writer.name("output").value(output);
+                    writer.endObject();
+                }
+            } catch (IOException ex) {
+                //client has gone away
+                log.debug(ex.toString(), ex);
+                return false;
+            }
+            return true;
+        }
+
+        Long getNextOffset() {
+            if (startOffset == null) {
+                return null;
+            }
+            //an escape sequence filling the page is skipped rather than read again
+            return startOffset + (cleaner.getTextBoundary() > 0 ? cleaner.getTextBoundary() : length);
+        }
+    }
+
+    /**
+     * writes cleaned terminal output to the response until the page is full. a full page ends after the last
+     * complete line so escape sequences and backspaces are cleaned with the rest of their line on the next page
+     */
+    private static class OutputPage implements Predicate<TerminalLog> {
+
+        JsonWriter writer;
+        TerminalOutputCleaner cleaner = new TerminalOutputCleaner();
+        Long offset;
+        Long nextOffset;
+        long length = 0;
+
+        OutputPage(JsonWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean test(TerminalLog terminalLog) {
+            if (offset == null) {
+                offset = terminalLog.getOffset();
+            }
+            length = length + terminalLog.getOutput().length();
+            try {
+                write(cleaner.clean(terminalLog.getOutput()));
+            } catch (IOException ex) {
+                //client has gone away
+                log.debug(ex.toString(), ex);
+                return false;
+            }
+            return length < AUDIT_PAGE_SIZE;
+        }
+
+        void finish() throws IOException {
+            if (length < AUDIT_PAGE_SIZE) {
+                write(cleaner.flush());
+                nextOffset = offset == null ? null : offset + length;
+            } else if (cleaner.getLineBoundary() > 0) {
+                //the partial last line is read again by the next page
+                nextOffset = offset + cleaner.getLineBoundary();
+            } else {
+                //a line longer than the page is split, but not inside an escape sequence unless it fills the page
+                write(cleaner.flush());
+                nextOffset = offset + (cleaner.getTextBoundary() > 0 ? cleaner.getTextBoundary() : length);
+            }
+        }
+
+        private void write(String output) throws IOException {
+            if (!output.isEmpty()) {
+                writer.value(output);
+            }
+        }
+    }
+
 
 }
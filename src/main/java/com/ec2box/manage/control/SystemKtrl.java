@@ -27,23 +27,14 @@
  */
 package com.ec2box.manage.control;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
-import com.amazonaws.services.cloudwatch.model.DescribeAlarmsResult;
-import com.amazonaws.services.cloudwatch.model.Dimension;
-import com.amazonaws.services.cloudwatch.model.MetricAlarm;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
-import com.amazonaws.services.ec2.model.*;
+import com.amazonaws.services.ec2.model.Filter;
 import com.ec2box.common.util.AppConfig;
 import com.ec2box.common.util.AuthUtil;
 import com.ec2box.manage.db.*;
 import com.ec2box.manage.model.*;
 import com.ec2box.manage.model.SortedSet;
-import com.ec2box.manage.util.AWSClientConfig;
+import com.ec2box.manage.util.EC2InventoryUtil;
+import com.google.gson.Gson;
 import loophole.mvc.annotation.Kontrol;
 import loophole.mvc.annotation.MethodType;
 import loophole.mvc.annotation.Model;
@@ -84,6 +75,12 @@ public class SystemKtrl extends BaseKontroller {
     Boolean showStatus = false;
     @Model(name = "script")
     Script script = new Script();
+    @Model(name = "discoveryErrorList")
+    List<String> discoveryErrorList = new ArrayList<>();
+    @Model(name = "refresh")
+    Boolean refresh = false;
+    @Model(name = "inventory")
+    EC2Inventory inventory;
 
     public SystemKtrl(HttpServletRequest request, HttpServletResponse response) {
         super(request, response);
@@ -96,9 +93,6 @@ public class SystemKtrl extends BaseKontroller {
         Long userId = AuthUtil.getUserId(getRequest().getSession());
         String userType = AuthUtil.getUserType(getRequest().getSession());
 
-        List<String> ec2RegionList = EC2KeyDB.getEC2Regions();
-        List<String> instanceIdList = new ArrayList<>();
-
         //default instance state
         if (sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATE) == null) {
             sortedSet.getFilterMap().put(FILTER_BY_INSTANCE_STATE, AppConfig.getProperty("defaultInstanceState"));
@@ -126,187 +120,56 @@ public class SystemKtrl extends BaseKontroller {
                     securityGroupList = Arrays.asList(sortedSet.getFilterMap().get(FILTER_BY_SECURITY_GROUP).split(","));
                 }
 
+                List<Filter> filterList = new ArrayList<>();
 
-                //get AWS credentials from DB
-                for (AWSCred awsCred : AWSCredDB.getAWSCredList()) {
-
-                    if (awsCred != null) {
-                        //set  AWS credentials for service
-                        BasicAWSCredentials awsCredentials = new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey());
-
-                        for (String ec2Region : ec2RegionList) {
-                            //create service
-
-                            AmazonEC2 service = AmazonEC2ClientBuilder.standard()
-                                    .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                                    .withClientConfiguration(AWSClientConfig.getClientConfig())
-                                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Region, EC2KeyKtrl.ec2RegionMap.get(ec2Region))).build();
-
-
-                            //only return systems that have keys set
-                            List<String> keyValueList = new ArrayList<>();
-                            for (EC2Key ec2Key : EC2KeyDB.getEC2KeyByRegion(ec2Region, awsCred.getId())) {
-                                keyValueList.add(ec2Key.getKeyNm());
-                            }
-
-                            DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest();
-
-                            Filter keyNmFilter = new Filter("key-name", keyValueList);
-                            describeInstancesRequest.withFilters(keyNmFilter);
-
-                            //instance state filter
-                            if (StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATE))) {
-                                List<String> instanceStateList = new ArrayList<>();
-                                instanceStateList.add(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATE));
-                                Filter instanceStateFilter = new Filter("instance-state-name", instanceStateList);
-                                describeInstancesRequest.withFilters(instanceStateFilter);
-                            }
-
-                            if (!securityGroupList.isEmpty()) {
-                                Filter groupFilter = new Filter("group-name", securityGroupList);
-                                describeInstancesRequest.withFilters(groupFilter);
-                            }
-                            //set name value pair for tag filter
-                            List<String> tagList = new ArrayList<String>();
-
-                            //add profile tags to filter list if not manager
-                            if (!Auth.MANAGER.equals(userType)) {
-                                addTagsToDescribeInstanceRequest(profileTagMap, describeInstancesRequest, tagList);
-                            }
-
-                            //add all additional filter tags provided by the user
-                            addTagsToDescribeInstanceRequest(filterTags, describeInstancesRequest, tagList);
-
-                            if (!tagList.isEmpty()) {
-                                Filter tagFilter = new Filter("tag-key", tagList);
-                                describeInstancesRequest.withFilters(tagFilter);
-                            }
-
-                            DescribeInstancesResult describeInstancesResult = service.describeInstances(describeInstancesRequest);
-
-                            for (Reservation res : describeInstancesResult.getReservations()) {
-                                for (Instance instance : res.getInstances()) {
-
-
-                                    HostSystem hostSystem = new HostSystem();
-                                    hostSystem.setInstance(instance.getInstanceId());
-
-                                    // (optionally) use private_ip configured, otherwise
-                                    // check for public dns if doesn't exist set to ip or pvt dns
-                                    if ("true".equals(AppConfig.getProperty("useEC2PvtIP")) && StringUtils.isNotEmpty(instance.getPrivateIpAddress())) {
-                                        hostSystem.setHost(instance.getPrivateIpAddress());
-                                    } else if ("true".equals(AppConfig.getProperty("useEC2PvtDNS")) && StringUtils.isNotEmpty(instance.getPrivateDnsName())) {
-                                        hostSystem.setHost(instance.getPrivateDnsName());
-                                    } else if (StringUtils.isNotEmpty(instance.getPublicDnsName())) {
-                                        hostSystem.setHost(instance.getPublicDnsName());
-                                    } else if (StringUtils.isNotEmpty(instance.getPublicIpAddress())) {
-                                        hostSystem.setHost(instance.getPublicIpAddress());
-                                    } else {
-                                        hostSystem.setHost(instance.getPrivateIpAddress());
-                                    }
-
-                                    hostSystem.setKeyId(EC2KeyDB.getEC2KeyByNmRegion(instance.getKeyName(), ec2Region, awsCred.getId()).getId());
-                                    hostSystem.setEc2Region(ec2Region);
-                                    hostSystem.setState(instance.getState().getName());
-                                    for (Tag tag : instance.getTags()) {
-                                        if ("Name".equals(tag.getKey())) {
-                                            hostSystem.setDisplayNm(tag.getValue());
-                                        } else if (AppConfig.getProperty("userTagName").equals(tag.getKey())) {
-                                            hostSystem.setUser(tag.getValue());
-                                        }
-                                    }
-                                    //if no display name set to host
-                                    if (StringUtils.isEmpty(hostSystem.getDisplayNm())) {
-                                        hostSystem.setDisplayNm(hostSystem.getHost());
-                                    }
-                                    instanceIdList.add(hostSystem.getInstance());
-                                    hostSystemList.put(hostSystem.getInstance(), hostSystem);
-                                }
-                            }
-
-                            if (instanceIdList.size() > 0) {
-                                //set instance id list to check permissions when creating sessions
-                                getRequest().getSession().setAttribute("instanceIdList", new ArrayList<>(instanceIdList));
-                                if (showStatus) {
-                                    //make service call 100 instances at a time b/c of AWS limitation
-                                    int i = 0;
-                                    List<String> idCallList = new ArrayList<>();
-                                    while (!instanceIdList.isEmpty()) {
-                                        idCallList.add(instanceIdList.remove(0));
-                                        i++;
-                                        //when i eq 100 make call
-                                        if (i >= 100 || instanceIdList.isEmpty()) {
-
-                                            //get status for host systems
-                                            DescribeInstanceStatusRequest describeInstanceStatusRequest = new DescribeInstanceStatusRequest();
-                                            describeInstanceStatusRequest.withInstanceIds(idCallList);
-                                            DescribeInstanceStatusResult describeInstanceStatusResult = service.describeInstanceStatus(describeInstanceStatusRequest);
-
-                                            for (InstanceStatus instanceStatus : describeInstanceStatusResult.getInstanceStatuses()) {
-
-                                                HostSystem hostSystem = hostSystemList.remove(instanceStatus.getInstanceId());
-                                                hostSystem.setSystemStatus(instanceStatus.getSystemStatus().getStatus());
-                                                hostSystem.setInstanceStatus(instanceStatus.getInstanceStatus().getStatus());
-
-                                                //check and filter by instance or system status
-                                                if ((StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)))
-                                                        || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)))
-                                                        || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)))
-                                                        || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)) && hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)))
-                                                        ) {
-                                                    hostSystemList.put(hostSystem.getInstance(), hostSystem);
-                                                }
-                                            }
-
-                                            //start over
-                                            i = 0;
-                                            //clear list
-                                            idCallList.clear();
-                                        }
-
-                                    }
-
-
-                                    //check alarms for ec2 instances
-                                    AmazonCloudWatch cloudWatchClient = AmazonCloudWatchClientBuilder.standard()
-                                            .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                                            .withClientConfiguration(AWSClientConfig.getClientConfig())
-                                            .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Region.replace("ec2", "monitoring"), EC2KeyKtrl.ec2RegionMap.get(ec2Region))).build();
-                                    DescribeAlarmsResult describeAlarmsResult = cloudWatchClient.describeAlarms();
-
-                                    for (MetricAlarm metricAlarm : describeAlarmsResult.getMetricAlarms()) {
-
-                                        for (Dimension dim : metricAlarm.getDimensions()) {
-
-                                            if (dim.getName().equals("InstanceId")) {
-                                                HostSystem hostSystem = hostSystemList.remove(dim.getValue());
-                                                if (hostSystem != null) {
-                                                    if ("ALARM".equals(metricAlarm.getStateValue())) {
-                                                        hostSystem.setMonitorAlarm(hostSystem.getMonitorAlarm() + 1);
-                                                    } else if ("INSUFFICIENT_DATA".equals(metricAlarm.getStateValue())) {
-                                                        hostSystem.setMonitorInsufficientData(hostSystem.getMonitorInsufficientData() + 1);
-                                                    } else {
-                                                        hostSystem.setMonitorOk(hostSystem.getMonitorOk() + 1);
-                                                    }
-                                                    //check and filter by alarm state
-                                                    if (StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE))
-                                                            || "ALARM".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorAlarm() > 0
-                                                            || ("INSUFFICIENT_DATA".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorInsufficientData() > 0)
-                                                            || ("OK".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorOk() > 0 && hostSystem.getMonitorInsufficientData() <= 0 && hostSystem.getMonitorAlarm() <= 0)) {
-                                                        hostSystemList.put(hostSystem.getInstance(), hostSystem);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                //instance state filter
+                if (StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATE))) {
+                    List<String> instanceStateList = new ArrayList<>();
+                    instanceStateList.add(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATE));
+                    filterList.add(new Filter("instance-state-name", instanceStateList));
+                }
+
+                if (!securityGroupList.isEmpty()) {
+                    filterList.add(new Filter("group-name", securityGroupList));
+                }
+                //set name value pair for tag filter
+                List<String> tagList = new ArrayList<String>();
+
+                //add profile tags to filter list if not manager
+                if (!Auth.MANAGER.equals(userType)) {
+                    addTagsToFilterList(profileTagMap, filterList, tagList);
+                }
+
+                //add all additional filter tags provided by the user
+                addTagsToFilterList(filterTags, filterList, tagList);
+
+                if (!tagList.isEmpty()) {
+                    filterList.add(new Filter("tag-key", tagList));
+                }
+
+                //read instances from the inventory snapshot, a refresh syncs in the background and the page
+                //picks up the new version through getJSONInventoryVersion
+                if (refresh) {
+                    EC2InventoryUtil.requestRefresh();
+                }
+                inventory = EC2InventoryUtil.getInventory();
+                discoveryErrorList = new ArrayList<>(inventory.getErrorList());
+                for (HostSystem hostSystem : inventory.getHostSystemMap().values()) {
+                    if (EC2InventoryUtil.matches(hostSystem, filterList)) {
+                        hostSystemList.put(hostSystem.getInstance(), hostSystem);
                     }
                 }
 
-                //set ec2 systems
-                SystemDB.setSystems(hostSystemList.values());
+                if (!hostSystemList.isEmpty()) {
+                    //set instance id list to check permissions when creating sessions
+                    getRequest().getSession().setAttribute("instanceIdList", new ArrayList<>(hostSystemList.keySet()));
+                }
+
+                //check and filter by instance or system status and alarm state
+                if (showStatus) {
+                    hostSystemList.values().removeIf(hostSystem -> !isStatusMatch(hostSystem) || !isAlarmMatch(hostSystem));
+                }
+
                 sortedSet = SystemDB.getSystemSet(sortedSet, new ArrayList<>(hostSystemList.keySet()));
 
             }
@@ -348,17 +211,66 @@ public class SystemKtrl extends BaseKontroller {
         return filterTags;
     }
 
-    private void addTagsToDescribeInstanceRequest(Map<String, List<String>> profileTagMap, DescribeInstancesRequest describeInstancesRequest, List<String> tagList) {
+    private void addTagsToFilterList(Map<String, List<String>> profileTagMap, List<Filter> filterList, List<String> tagList) {
         for (String tag : profileTagMap.keySet()) {
             if (profileTagMap.get(tag) != null) {
-                Filter tagValueFilter = new Filter("tag:" + tag, profileTagMap.get(tag));
-                describeInstancesRequest.withFilters(tagValueFilter);
+                filterList.add(new Filter("tag:" + tag, profileTagMap.get(tag)));
             } else {
                 tagList.add(tag);
             }
         }
     }
 
+    /**
+     * checks host system status against the instance and system status filters, systems without status are kept
+     *
+     * @param hostSystem host system
+     * @return true if system should be displayed
+     */
+    private boolean isStatusMatch(HostSystem hostSystem) {
+        if (hostSystem.getInstanceStatus() == null) {
+            return true;
+        }
+        return (StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)))
+                || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)))
+                || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)) && StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)))
+                || (hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM_STATUS)) && hostSystem.getInstanceStatus().equals(sortedSet.getFilterMap().get(FILTER_BY_INSTANCE_STATUS)));
+    }
+
+    /**
+     * checks host system alarm counts against the alarm state filter, systems without alarms are kept
+     *
+     * @param hostSystem host system
+     * @return true if system should be displayed
+     */
+    private boolean isAlarmMatch(HostSystem hostSystem) {
+        if (hostSystem.getMonitorAlarm() + hostSystem.getMonitorInsufficientData() + hostSystem.getMonitorOk() == 0) {
+            return true;
+        }
+        return StringUtils.isEmpty(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE))
+                || "ALARM".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorAlarm() > 0
+                || ("INSUFFICIENT_DATA".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorInsufficientData() > 0)
+                || ("OK".equals(sortedSet.getFilterMap().get(FILTER_BY_ALARM_STATE)) && hostSystem.getMonitorOk() > 0 && hostSystem.getMonitorInsufficientData() <= 0 && hostSystem.getMonitorAlarm() <= 0);
+    }
+
+    /**
+     * returns the inventory version as a json string so the page knows when systems have changed
+     */
+    @Kontrol(path = "/admin/getJSONInventoryVersion", method = MethodType.GET)
+    public String getJSONInventoryVersion() {
+        EC2Inventory current = EC2InventoryUtil.getInventory();
+        Map<String, Long> versionMap = new HashMap<>();
+        versionMap.put("version", current.getVersion());
+        versionMap.put("syncTm", current.getSyncTm());
+        String json = new Gson().toJson(versionMap);
+        try {
+            getResponse().getOutputStream().write(json.getBytes());
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+        return null;
+    }
+
     @Kontrol(path = "/admin/saveSystem", method = MethodType.POST)
     public String saveSystem() {
 
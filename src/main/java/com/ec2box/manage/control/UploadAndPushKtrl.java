@@ -27,44 +27,52 @@
  */
 package com.ec2box.manage.control;
 
+import com.ec2box.common.util.AppConfig;
 import com.ec2box.common.util.AuthUtil;
 import com.ec2box.manage.db.SystemStatusDB;
 import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.model.PushJob;
 import com.ec2box.manage.model.SchSession;
-import com.ec2box.manage.util.DBUtils;
-import com.ec2box.manage.util.SSHUtil;
+import com.ec2box.manage.model.UserSchSessions;
+import com.ec2box.manage.util.PushUtil;
+import com.ec2box.manage.util.UploadStoreUtil;
 import loophole.mvc.annotation.Kontrol;
 import loophole.mvc.annotation.MethodType;
 import loophole.mvc.annotation.Model;
 import loophole.mvc.annotation.Validate;
 import loophole.mvc.base.BaseKontroller;
 import loophole.mvc.filter.SecurityFilter;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.AgeFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class UploadAndPushKtrl extends BaseKontroller {
 
-    public static final String UPLOAD_PATH = DBUtils.class.getClassLoader().getResource(".").getPath() + "../upload";
     private static Logger log = LoggerFactory.getLogger(UploadAndPushKtrl.class);
 
+    public static final String PUSH_RUNNING_ERROR = "A push is still running for this session, please wait for it to finish";
+    //max size in MB of an upload (no limit for <=0)
+    public static final long UPLOAD_MAX_SIZE = StringUtils.isNumeric(AppConfig.getProperty("uploadMaxSize")) ? Long.parseLong(AppConfig.getProperty("uploadMaxSize")) : 0;
+
     @Model(name = "upload")
     File upload;
     @Model(name = "uploadFileName")
     String uploadFileName;
+    @Model(name = "checksum")
+    String checksum;
     @Model(name = "idList")
     List<Long> idList = new ArrayList<>();
     @Model(name = "pushDir")
@@ -75,6 +83,8 @@ public class UploadAndPushKtrl extends BaseKontroller {
     HostSystem pendingSystemStatus;
     @Model(name = "currentSystemStatus")
     HostSystem currentSystemStatus;
+    @Model(name = "pushJob")
+    PushJob pushJob;
 
 
     public UploadAndPushKtrl(HttpServletRequest request, HttpServletResponse response) {
@@ -84,8 +94,14 @@ public class UploadAndPushKtrl extends BaseKontroller {
     @Kontrol(path = "/admin/setUpload", method = MethodType.GET)
     public String setUpload() throws Exception {
         Long userId = AuthUtil.getUserId(getRequest().getSession());
+        Long sessionId = AuthUtil.getSessionId(getRequest().getSession());
 
-        SystemStatusDB.setInitialSystemStatus(idList, userId, getRequest());
+        //system status is used by the running push
+        if (PushUtil.isPushRunning(sessionId)) {
+            addError(PUSH_RUNNING_ERROR);
+        } else {
+            SystemStatusDB.setInitialSystemStatus(idList, userId, getRequest());
+        }
 
         return "/admin/upload.html";
 
@@ -99,18 +115,21 @@ public class UploadAndPushKtrl extends BaseKontroller {
         Long userId = AuthUtil.getUserId(getRequest().getSession());
         try {
 
-            List<FileItem> multiparts = new ServletFileUpload(new DiskFileItemFactory()).parseRequest(getRequest());
-            for (FileItem item : multiparts) {
-                if (!item.isFormField()) {
-                    uploadFileName = new File(item.getName()).getName();
-                    File path = new File(UPLOAD_PATH);
-                    if(!path.exists()) {
-                        path.mkdirs();
+            //stream file straight to the upload store while calculating the checksum
+            ServletFileUpload servletFileUpload = new ServletFileUpload();
+            if (UPLOAD_MAX_SIZE > 0) {
+                servletFileUpload.setFileSizeMax(UPLOAD_MAX_SIZE * 1024 * 1024);
+            }
+            FileItemIterator items = servletFileUpload.getItemIterator(getRequest());
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                try (InputStream in = item.openStream()) {
+                    if (!item.isFormField()) {
+                        uploadFileName = new File(item.getName()).getName();
+                        checksum = UploadStoreUtil.store(in);
+                    } else {
+                        pushDir = Streams.asString(in, "UTF-8");
                     }
-                    upload = new File(UPLOAD_PATH + File.separator + uploadFileName);
-                    item.write(upload);
-                } else {
-                    pushDir =  item.getString();
                 }
             }
 
@@ -119,6 +138,9 @@ public class UploadAndPushKtrl extends BaseKontroller {
             hostSystemList = SystemStatusDB.getAllSystemStatus(userId);
 
 
+        } catch (FileUploadBase.FileUploadIOException e) {
+            addFieldError("upload", "File exceeds max size of " + UPLOAD_MAX_SIZE + " MB");
+            retVal = "/admin/upload.html";
         } catch (Exception e) {
             log.error(e.toString(), e);
             retVal = "/admin/upload.html";
@@ -130,65 +152,66 @@ public class UploadAndPushKtrl extends BaseKontroller {
         return retVal;
     }
 
-    @Kontrol(path = "/admin/push", method = MethodType.POST)
-    public String push() {
+    @Kontrol(path = "/admin/checkUpload", method = MethodType.GET)
+    public String checkUpload() {
 
-        Long userId = AuthUtil.getUserId(getRequest().getSession());
-        Long sessionId = AuthUtil.getSessionId(getRequest().getSession());
+        //lets the browser skip uploading a file that is already stored
         try {
+            getResponse().setContentType("application/json");
+            getResponse().getOutputStream().write(("{\"stored\":" + UploadStoreUtil.contains(checksum) + "}").getBytes());
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
 
-            //get next pending system
-            pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-            if (pendingSystemStatus != null) {
-                //get session for system
-                SchSession session = null;
-                for (Integer instanceId : SecureShellKtrl.getUserSchSessionMap().get(sessionId).getSchSessionMap().keySet()) {
-
-                    //if host system id matches pending system then upload
-                    if (pendingSystemStatus.getId().equals(SecureShellKtrl.getUserSchSessionMap().get(sessionId).getSchSessionMap().get(instanceId).getHostSystem().getId())) {
-                        session = SecureShellKtrl.getUserSchSessionMap().get(sessionId).getSchSessionMap().get(instanceId);
-                    }
-                }
-
-                if (session != null) {
-
-                    //push upload to system
-                    currentSystemStatus = SSHUtil.pushUpload(pendingSystemStatus, session.getSession(), UPLOAD_PATH + "/" + uploadFileName, pushDir + "/" + uploadFileName);
-
-                    //update system status
-                    SystemStatusDB.updateSystemStatus(currentSystemStatus, userId);
+        return null;
+    }
 
-                    pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-                }
+    @Kontrol(path = "/admin/uploadStored", method = MethodType.POST)
+    public String uploadStored() {
 
-            }
+        String retVal = "/admin/upload_result.html";
+        Long userId = AuthUtil.getUserId(getRequest().getSession());
+        if (UploadStoreUtil.contains(checksum) && StringUtils.isNotEmpty(uploadFileName)) {
+            uploadFileName = new File(uploadFileName).getName();
+            pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
+            hostSystemList = SystemStatusDB.getAllSystemStatus(userId);
+        } else {
+            addError("Upload is no longer stored, please upload again");
+            retVal = "/admin/upload.html";
+        }
+        //reset csrf token back since it's already set on page load
+        getRequest().getSession().setAttribute(SecurityFilter._CSRF,
+                getRequest().getParameter(SecurityFilter._CSRF));
 
-            //if push has finished to all servers then delete uploaded file
-            if (pendingSystemStatus == null) {
-                File delFile = new File(UPLOAD_PATH, uploadFileName);
-                FileUtils.deleteQuietly(delFile);
+        return retVal;
+    }
 
+    @Kontrol(path = "/admin/push", method = MethodType.POST)
+    public String push() {
 
-                //delete all expired files in upload path
-                File delDir = new File(UPLOAD_PATH);
-                if (delDir.isDirectory()) {
+        Long userId = AuthUtil.getUserId(getRequest().getSession());
+        Long sessionId = AuthUtil.getSessionId(getRequest().getSession());
+        try {
 
-                    //set expire time to delete all files older than 48 hrs
-                    Calendar expireTime = Calendar.getInstance();
-                    expireTime.add(Calendar.HOUR, -48);
+            //push to all pending systems in parallel, progress is sent over the web socket
+            Map<Integer, SchSession> schSessionMap = null;
+            UserSchSessions userSchSessions = SecureShellKtrl.getUserSchSessionMap().get(sessionId);
+            if (userSchSessions != null) {
+                schSessionMap = userSchSessions.getSchSessionMap();
+            }
+            pushJob = PushUtil.startPushJob(userId, sessionId, checksum, uploadFileName, pushDir, schSessionMap);
 
-                    Iterator<File> filesToDelete = FileUtils.iterateFiles(delDir, new AgeFileFilter(expireTime.getTime()), TrueFileFilter.TRUE);
-                    while (filesToDelete.hasNext()) {
-                        delFile = filesToDelete.next();
-                        delFile.delete();
-                    }
+            hostSystemList = SystemStatusDB.getAllSystemStatus(userId);
 
-                }
 
+        } catch (IllegalStateException e) {
+            //keep showing the progress of the running push
+            addError(PUSH_RUNNING_ERROR);
+            pushJob = PushUtil.getPushJob(sessionId);
+            if (pushJob != null) {
+                uploadFileName = pushJob.getFileName();
             }
             hostSystemList = SystemStatusDB.getAllSystemStatus(userId);
-
-
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
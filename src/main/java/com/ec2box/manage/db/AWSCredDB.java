@@ -29,6 +29,7 @@ package com.ec2box.manage.db;
 
 import com.ec2box.manage.model.AWSCred;
 import com.ec2box.manage.model.SortedSet;
+import com.ec2box.manage.util.AWSClientUtil;
 import com.ec2box.manage.util.DBUtils;
 import com.ec2box.manage.util.EncryptionUtil;
 import org.slf4j.Logger;
@@ -250,6 +251,9 @@ public class AWSCredDB {
 
             DBUtils.closeStmt(stmt);
 
+            //drop clients built with the old keys
+            AWSClientUtil.invalidate(awsCred.getId());
+
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
@@ -277,6 +281,8 @@ public class AWSCredDB {
 
             DBUtils.closeStmt(stmt);
 
+            AWSClientUtil.invalidate(id);
+
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
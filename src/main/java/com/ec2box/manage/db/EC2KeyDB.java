@@ -55,6 +55,9 @@ public class EC2KeyDB {
     public static final String ACCESS_KEY = "access_key";
     public static final String AWS_CRED_ID = "aws_cred_id";
 
+    //query with a plan checked against the migrated schema by DBQueryPlanTest
+    static final String SELECT_BY_REGION_SQL = "select * from ec2_keys where ec2_region like ? and aws_cred_id=?";
+
     private EC2KeyDB() {
     }
 
@@ -203,7 +206,7 @@ public class EC2KeyDB {
         Connection con = null;
         try {
             con = DBUtils.getConn();
-            PreparedStatement stmt = con.prepareStatement("select * from ec2_keys where ec2_region like ? and aws_cred_id=?");
+            PreparedStatement stmt = con.prepareStatement(SELECT_BY_REGION_SQL);
             stmt.setString(1, ec2Region);
             stmt.setLong(2, awsCredId);
             ResultSet rs = stmt.executeQuery();
@@ -31,16 +31,22 @@ package com.ec2box.manage.db;
 import com.ec2box.common.util.AppConfig;
 import com.ec2box.manage.model.*;
 import com.ec2box.manage.util.DBUtils;
+import com.ec2box.manage.util.TerminalLogSegmentBuilder;
+import com.ec2box.manage.util.TerminalLogSegmentReader;
+import com.ec2box.manage.util.TerminalLogUtil;
 import org.apache.commons.lang3.StringUtils;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,6 +67,15 @@ public class SessionAuditDB {
     public static final String SORT_BY_USERNAME = "username";
     public static final String SORT_BY_SESSION_TM = "session_tm";
 
+    //number of terminal log segments fetched from the cursor at a time
+    private static final int SEGMENT_FETCH_SIZE = 10;
+
+    //queries with a plan checked against the migrated schema by DBQueryPlanTest
+    static final String DELETE_BEFORE_TM_SQL = "delete from session_log where session_tm < ?";
+    static final String SELECT_LAST_SEGMENT_SQL = "select segment_no, start_offset, output_len from terminal_log_segment where session_id=? and instance_id=? order by segment_no desc limit 1";
+    static final String SELECT_SEGMENT_OFFSET_SQL = "select start_offset from terminal_log_segment where session_id=? and instance_id=? and start_tm <= ? order by start_tm desc, segment_no desc limit 1";
+    static final String SELECT_SEGMENTS_SQL = "select start_offset, output from terminal_log_segment where session_id=? and instance_id=? and start_offset + output_len > ? and end_tm >= ?";
+
     private SessionAuditDB() {
     }
 
@@ -80,7 +95,7 @@ public class SessionAuditDB {
             java.sql.Date date = new java.sql.Date(cal.getTimeInMillis());
 
 
-            PreparedStatement stmt = con.prepareStatement("delete from session_log where session_tm < ?");
+            PreparedStatement stmt = con.prepareStatement(DELETE_BEFORE_TM_SQL);
             stmt.setDate(1, date);
             stmt.execute();
 
@@ -112,7 +127,7 @@ public class SessionAuditDB {
 
         String sql = "select * from session_log where 1=1 ";
         sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_USER)) ? " and session_log.username like ? " : "";
-        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM)) ? " and session_log.id in ( select session_id from terminal_log where terminal_log.display_nm like ?) " : "";
+        sql+= StringUtils.isNotEmpty(sortedSet.getFilterMap().get(FILTER_BY_SYSTEM)) ? " and session_log.id in ( select session_id from terminal_log_segment where terminal_log_segment.display_nm like ?) " : "";
         sql+= orderBy;
 
         try {
@@ -217,72 +232,252 @@ public class SessionAuditDB {
 
 
     /**
-     * insert new terminal history for user
+     * prepares statement to insert terminal log segments that can be reused for batches
      *
-     * @param sessionOutput output from session terminals
-     * @return session id
+     * @param con DB connection
+     * @return prepared statement
+     * @throws SQLException on DB error
      */
-    public static void insertTerminalLog(SessionOutput sessionOutput) {
-        //get db connection
-        Connection con = DBUtils.getConn();
+    public static PreparedStatement prepareInsertTerminalLogSegment(Connection con) throws SQLException {
+        return con.prepareStatement("insert into terminal_log_segment (session_id, instance_id, segment_no, start_offset, output_len, start_tm, end_tm, display_nm, user, host, port, output) values(?,?,?,?,?,?,?,?,?,?,?,?)");
+    }
 
-        try {
-            insertTerminalLog(con, sessionOutput);
+    /**
+     * inserts terminal log segments as a single JDBC batch
+     *
+     * @param stmt        statement from {@link #prepareInsertTerminalLogSegment(Connection)}
+     * @param segmentList compressed output from session terminals
+     * @throws SQLException on DB error
+     */
+    public static void insertTerminalLogSegments(PreparedStatement stmt, List<TerminalLogSegment> segmentList) throws SQLException {
+
+        for (TerminalLogSegment segment : segmentList) {
+            stmt.setLong(1, segment.getSessionId());
+            stmt.setInt(2, segment.getInstanceId());
+            stmt.setInt(3, segment.getSegmentNo());
+            stmt.setLong(4, segment.getStartOffset());
+            stmt.setInt(5, segment.getOutputLength());
+            stmt.setTimestamp(6, segment.getStartTm());
+            stmt.setTimestamp(7, segment.getEndTm());
+            stmt.setString(8, segment.getDisplayNm());
+            stmt.setString(9, segment.getUser());
+            stmt.setString(10, segment.getHost());
+            stmt.setInt(11, segment.getPort());
+            stmt.setBytes(12, segment.getOutput());
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+    }
 
-        } catch (Exception e) {
-            log.error(e.toString(), e);
+    /**
+     * returns the last segment written for a terminal
+     *
+     * @param con        DB connection
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @return segment number, start offset and output length of the last segment or null if none was written
+     * @throws SQLException on DB error
+     */
+    public static TerminalLogSegment getLastTerminalLogSegment(Connection con, Long sessionId, Integer instanceId) throws SQLException {
+
+        TerminalLogSegment segment = null;
+        PreparedStatement stmt = con.prepareStatement(SELECT_LAST_SEGMENT_SQL);
+        stmt.setLong(1, sessionId);
+        stmt.setInt(2, instanceId);
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next()) {
+            segment = new TerminalLogSegment();
+            segment.setSessionId(sessionId);
+            segment.setInstanceId(instanceId);
+            segment.setSegmentNo(rs.getInt("segment_no"));
+            segment.setStartOffset(rs.getLong("start_offset"));
+            segment.setOutputLength(rs.getInt("output_len"));
         }
-        finally {
-            DBUtils.closeConn(con);
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+
+        return segment;
+    }
+
+
+    /**
+     * renumbers segments of terminals that have duplicate segment numbers in write order and recomputes their offsets
+     *
+     * @param con DB connection
+     * @throws SQLException on DB error
+     */
+    public static void renumberTerminalLogSegments(Connection con) throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement("select distinct session_id, instance_id from terminal_log_segment group by session_id, instance_id, segment_no having count(*) > 1");
+        PreparedStatement selectStmt = con.prepareStatement("select id, output_len from terminal_log_segment where session_id=? and instance_id=? order by start_tm, id");
+        PreparedStatement updateStmt = con.prepareStatement("update terminal_log_segment set segment_no=?, start_offset=? where id=?");
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            selectStmt.setLong(1, rs.getLong("session_id"));
+            selectStmt.setInt(2, rs.getInt("instance_id"));
+            ResultSet segmentRs = selectStmt.executeQuery();
+            int segmentNo = 0;
+            long offset = 0;
+            while (segmentRs.next()) {
+                updateStmt.setInt(1, segmentNo++);
+                updateStmt.setLong(2, offset);
+                updateStmt.setLong(3, segmentRs.getLong("id"));
+                updateStmt.addBatch();
+                offset = offset + segmentRs.getInt("output_len");
+            }
+            DBUtils.closeRs(segmentRs);
+            updateStmt.executeBatch();
         }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(updateStmt);
+        DBUtils.closeStmt(selectStmt);
+        DBUtils.closeStmt(stmt);
     }
 
+
     /**
-     * insert new terminal history for user
+     * moves rows from the terminal_log table used by earlier versions into compressed segments and drops the table
      *
-     * @param con           DB connection
-     * @param sessionOutput output from session terminals
-     * @return session id
+     * @param con DB connection
+     * @throws Exception on DB or compression error
      */
-    public static void insertTerminalLog(Connection con, SessionOutput sessionOutput) {
+    public static void migrateTerminalLogs(Connection con) throws Exception {
 
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        PreparedStatement stmt = con.prepareStatement("select * from terminal_log order by session_id, instance_id, log_tm");
+        stmt.setFetchSize(1000);
+        PreparedStatement insertStmt = prepareInsertTerminalLogSegment(con);
         try {
-
-            if (sessionOutput != null && sessionOutput.getSessionId() != null && sessionOutput.getInstanceId() != null && sessionOutput.getOutput() != null && !sessionOutput.getOutput().toString().equals("")) {
-                //insert
-                PreparedStatement stmt = con.prepareStatement("insert into terminal_log (session_id, instance_id, display_nm, user, host, port, output) values(?,?,?,?,?,?,?)");
-                stmt.setLong(1, sessionOutput.getSessionId());
-                stmt.setLong(2, sessionOutput.getInstanceId());
-                stmt.setString(3, sessionOutput.getDisplayNm());
-                stmt.setString(4, sessionOutput.getUser());
-                stmt.setString(5, sessionOutput.getHost());
-                stmt.setInt(6, sessionOutput.getPort());
-                stmt.setString(7, sessionOutput.getOutput().toString());
-                stmt.execute();
-                DBUtils.closeStmt(stmt);
+            ResultSet rs = stmt.executeQuery();
+            List<TerminalLogSegment> segmentList = new ArrayList<>();
+            TerminalLogSegmentBuilder builder = null;
+            int segmentNo = 0;
+            long offset = 0;
+            while (rs.next()) {
+                TerminalLog terminalLog = new TerminalLog();
+                terminalLog.setSessionId(rs.getLong("session_id"));
+                terminalLog.setInstanceId(rs.getInt("instance_id"));
+                terminalLog.setDisplayNm(rs.getString("display_nm"));
+                terminalLog.setUser(rs.getString("user"));
+                terminalLog.setHost(rs.getString("host"));
+                terminalLog.setPort(rs.getInt("port"));
+                terminalLog.setOutput(rs.getString("output"));
+                terminalLog.setLogTm(rs.getTimestamp("log_tm"));
+
+                //start a new segment for each terminal or when the segment is full
+                boolean newTerminal = builder == null || !terminalLog.getSessionId().equals(builder.getSessionId()) || !terminalLog.getInstanceId().equals(builder.getInstanceId());
+                if (builder != null && (newTerminal || builder.getOutputLength() >= TerminalLogUtil.SEGMENT_SIZE)) {
+                    segmentList.add(builder.build());
+                    segmentNo = newTerminal ? 0 : segmentNo + 1;
+                    offset = newTerminal ? 0 : offset + builder.getOutputLength();
+                    builder = null;
+                }
+                if (builder == null) {
+                    builder = new TerminalLogSegmentBuilder(terminalLog, segmentNo, offset);
+                }
+                builder.append(terminalLog);
+
+                if (segmentList.size() >= 100) {
+                    insertTerminalLogSegments(insertStmt, segmentList);
+                    segmentList.clear();
+                }
+            }
+            if (builder != null) {
+                segmentList.add(builder.build());
             }
+            if (!segmentList.isEmpty()) {
+                insertTerminalLogSegments(insertStmt, segmentList);
+            }
+            DBUtils.closeRs(rs);
 
-        } catch (Exception e) {
-            log.error(e.toString(), e);
+            Statement dropStmt = con.createStatement();
+            dropStmt.executeUpdate("drop table terminal_log");
+            DBUtils.closeStmt(dropStmt);
+            con.commit();
+        } catch (Exception ex) {
+            con.rollback();
+            throw ex;
+        } finally {
+            DBUtils.closeStmt(insertStmt);
+            DBUtils.closeStmt(stmt);
+            con.setAutoCommit(autoCommit);
         }
-
     }
 
 
     /**
-     * returns terminal logs for user session for host system
+     * reads terminal logs for user session for host system in order, starting from the output offset and log time
      *
-     * @param sessionId     session id
-     * @param instanceId    instance id for terminal session
-     * @return session output for session
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param offset     number of chars of terminal output to skip
+     * @param startTm    skip output logged before this time
+     * @param handler    receives each log with its offset and returns false to stop reading
      */
-    public static List<SessionOutput> getTerminalLogsForSession(Long sessionId, Integer instanceId) {
-        //get db connection
-        Connection con = DBUtils.getConn();
-        List<SessionOutput> outputList = null;
+    public static void getTerminalLogsForSession(Long sessionId, Integer instanceId, Long offset, Timestamp startTm, Predicate<TerminalLog> handler) {
+        getTerminalLogsForSession(sessionId, instanceId, offset, startTm, null, handler);
+    }
+
+    /**
+     * reads terminal logs for user session for host system in order, between the output offset and log times given
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param offset     number of chars of terminal output to skip
+     * @param startTm    skip output logged before this time
+     * @param endTm      stop at output logged at or after this time
+     * @param handler    receives each log with its offset and returns false to stop reading
+     */
+    public static void getTerminalLogsForSession(Long sessionId, Integer instanceId, Long offset, Timestamp startTm, Timestamp endTm, Predicate<TerminalLog> handler) {
+
+        long minOffset = offset == null ? 0 : offset;
+        Timestamp minTm = startTm == null ? new Timestamp(0) : startTm;
 
+        Connection con = DBUtils.getConn();
         try {
-            outputList = getTerminalLogsForSession(con, sessionId, instanceId);
+            //segments are read one at a time from the cursor and decompressed as the handler consumes them
+            String sql = SELECT_SEGMENTS_SQL;
+            if (endTm != null) {
+                sql = sql + " and start_tm < ?";
+            }
+            PreparedStatement stmt = con.prepareStatement(sql + " order by segment_no asc");
+            stmt.setFetchSize(SEGMENT_FETCH_SIZE);
+            stmt.setLong(1, sessionId);
+            stmt.setInt(2, instanceId);
+            stmt.setLong(3, minOffset);
+            stmt.setTimestamp(4, minTm);
+            if (endTm != null) {
+                stmt.setTimestamp(5, endTm);
+            }
+            ResultSet rs = stmt.executeQuery();
+            boolean more = true;
+            while (more && rs.next()) {
+                long logOffset = rs.getLong("start_offset");
+                try (TerminalLogSegmentReader reader = new TerminalLogSegmentReader(rs.getBinaryStream("output"))) {
+                    TerminalLog terminalLog;
+                    while (more && (terminalLog = reader.next()) != null) {
+                        String output = terminalLog.getOutput();
+                        long nextOffset = logOffset + output.length();
+                        if (endTm != null && !terminalLog.getLogTm().before(endTm)) {
+                            more = false;
+                        } else if (nextOffset > minOffset && !terminalLog.getLogTm().before(minTm)) {
+                            //start part way through the log when the offset falls inside it
+                            if (logOffset < minOffset) {
+                                terminalLog.setOutput(output.substring((int) (minOffset - logOffset)));
+                                logOffset = minOffset;
+                            }
+                            terminalLog.setSessionId(sessionId);
+                            terminalLog.setInstanceId(instanceId);
+                            terminalLog.setOffset(logOffset);
+                            more = handler.test(terminalLog);
+                        }
+                        logOffset = nextOffset;
+                    }
+                }
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
 
         } catch (Exception e) {
             log.error(e.toString(), e);
@@ -290,56 +485,74 @@ public class SessionAuditDB {
         finally {
             DBUtils.closeConn(con);
         }
-
-        return outputList;
     }
 
-
     /**
-     * returns terminal logs for user session for host system
+     * returns the time of the first and last terminal output recorded for user session for host system
      *
-     * @param sessionId     session id
-     * @param instanceId    instance id for terminal session
-     * @return session output for session
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @return segment with start and end time set or null if no output was recorded
      */
-    public static List<SessionOutput> getTerminalLogsForSession(Connection con, Long sessionId, Integer instanceId) {
+    public static TerminalLogSegment getTerminalLogTimes(Long sessionId, Integer instanceId) {
 
-        List<SessionOutput> outputList = new LinkedList<>();
+        TerminalLogSegment segment = null;
+        Connection con = DBUtils.getConn();
         try {
-            PreparedStatement stmt = con.prepareStatement("select * from terminal_log where instance_id=? and session_id=? order by log_tm asc");
-            stmt.setLong(1, instanceId);
-            stmt.setLong(2, sessionId);
+            PreparedStatement stmt = con.prepareStatement("select min(start_tm) as start_tm, max(end_tm) as end_tm from terminal_log_segment where session_id=? and instance_id=?");
+            stmt.setLong(1, sessionId);
+            stmt.setInt(2, instanceId);
             ResultSet rs = stmt.executeQuery();
-            StringBuilder outputBuilder = new StringBuilder("");
-            while (rs.next()) {
-                outputBuilder.append(rs.getString("output"));
-            }
-
-            String output = outputBuilder.toString();
-            output = output.replaceAll("\\u0007|\u001B\\[K|\\]0;|\\[\\d\\d;\\d\\dm|\\[\\dm","");
-            while (output.contains("\b")) {
-                output = output.replaceFirst(".\b", "");
+            if (rs.next() && rs.getTimestamp("start_tm") != null) {
+                segment = new TerminalLogSegment();
+                segment.setSessionId(sessionId);
+                segment.setInstanceId(instanceId);
+                segment.setStartTm(rs.getTimestamp("start_tm"));
+                segment.setEndTm(rs.getTimestamp("end_tm"));
             }
             DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
 
-            SessionOutput sessionOutput = new SessionOutput();
-            sessionOutput.setSessionId(sessionId);
-            sessionOutput.setInstanceId(instanceId);
-            sessionOutput.getOutput().append(output);
-
-            outputList.add(sessionOutput);
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return segment;
+    }
 
+    /**
+     * returns the output offset of the segment recorded at the given time
+     *
+     * @param sessionId  session id
+     * @param instanceId instance id for terminal session
+     * @param logTm      log time
+     * @return start offset of the last segment started at or before the log time or 0 if there is none
+     */
+    public static long getTerminalLogOffset(Long sessionId, Integer instanceId, Timestamp logTm) {
 
+        long offset = 0;
+        Connection con = DBUtils.getConn();
+        try {
+            PreparedStatement stmt = con.prepareStatement(SELECT_SEGMENT_OFFSET_SQL);
+            stmt.setLong(1, sessionId);
+            stmt.setInt(2, instanceId);
+            stmt.setTimestamp(3, logTm);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                offset = rs.getLong("start_offset");
+            }
             DBUtils.closeRs(rs);
-
-
             DBUtils.closeStmt(stmt);
 
         } catch (Exception e) {
             log.error(e.toString(), e);
         }
-        return outputList;
-
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return offset;
     }
 
     /**
@@ -353,7 +566,7 @@ public class SessionAuditDB {
 
         List<HostSystem> hostSystemList = new ArrayList<>();
         try {
-            PreparedStatement stmt = con.prepareStatement("select distinct instance_id, display_nm, user, host, port from terminal_log where session_id=?");
+            PreparedStatement stmt = con.prepareStatement("select distinct instance_id, display_nm, user, host, port from terminal_log_segment where session_id=?");
             stmt.setLong(1, sessionId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
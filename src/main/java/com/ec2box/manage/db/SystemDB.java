@@ -36,9 +36,13 @@ import org.slf4j.LoggerFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -64,6 +68,15 @@ public class SystemDB {
     public static final String M_OK = "m_ok";
     public static final String ID = "id";
 
+    //rows sent to the DB in each batch when setting systems
+    public static final int MERGE_BATCH_SIZE = 500;
+
+    //queries with a plan checked against the migrated schema by DBQueryPlanTest
+    static final String SELECT_BY_INSTANCE_ID_SQL = "select * from  system where instance_id=?";
+
+    //instance id list is bound as an array and expanded with H2's table function
+    static final String SELECT_BY_INSTANCE_ID_LIST_SQL = "select s.*, CONCAT_WS('-',s.m_alarm,s.m_insufficient_data,s.m_ok) as alarms from table(lookup_id varchar=?) l inner join system s on s.instance_id=l.lookup_id";
+
     public static final String SORT_BY_NAME = DISPLAY_NM;
     public static final String SORT_BY_INSTANCE_ID = INSTANCE_ID;
     public static final String SORT_BY_USER = USER;
@@ -144,7 +157,6 @@ public class SystemDB {
      * @return sortedSet with list of host systems
      */
     public static SortedSet getSystemSet(SortedSet sortedSet, List<String> instanceIdList) {
-        List<HostSystem> hostSystemList = new ArrayList<>();
 
         if (instanceIdList != null && !instanceIdList.isEmpty()) {
 
@@ -152,41 +164,11 @@ public class SystemDB {
             if (sortedSet.getOrderByField() != null && !sortedSet.getOrderByField().trim().equals("")) {
                 orderBy = " order by " + sortedSet.getOrderByField() + " " + sortedSet.getOrderByDirection();
             }
-            StringBuilder sqlBuilder = new StringBuilder("select *, CONCAT_WS('-',m_alarm,m_insufficient_data,m_ok) as alarms from  system  where instance_id in ( ");
-            for (int i = 0; i < instanceIdList.size(); i++) {
-                if (i == instanceIdList.size() - 1) sqlBuilder.append("'").append(instanceIdList.get(i)).append("') ");
-                else sqlBuilder.append("'").append(instanceIdList.get(i)).append("', ");
-            }
-
-            sqlBuilder.append(orderBy);
 
             Connection con = null;
             try {
                 con = DBUtils.getConn();
-                PreparedStatement stmt = con.prepareStatement(sqlBuilder.toString());
-
-                ResultSet rs = stmt.executeQuery();
-
-                while (rs.next()) {
-                    HostSystem hostSystem = new HostSystem();
-                    hostSystem.setId(rs.getLong(ID));
-                    hostSystem.setDisplayNm(rs.getString(DISPLAY_NM));
-                    hostSystem.setInstance(rs.getString(INSTANCE_ID));
-                    hostSystem.setUser(rs.getString(USER));
-                    hostSystem.setHost(rs.getString(HOST));
-                    hostSystem.setPort(rs.getInt(PORT));
-                    hostSystem.setKeyId(rs.getLong(KEY_ID));
-                    hostSystem.setEc2Region(rs.getString(REGION));
-                    hostSystem.setState(rs.getString(STATE));
-                    hostSystem.setInstanceStatus(rs.getString(INSTANCE_STATUS));
-                    hostSystem.setSystemStatus(rs.getString(SYSTEM_STATUS));
-                    hostSystem.setMonitorAlarm(rs.getInt(M_ALARM));
-                    hostSystem.setMonitorInsufficientData(rs.getInt(M_INSUFFICIENT_DATA));
-                    hostSystem.setMonitorOk(rs.getInt(M_OK));
-                    hostSystemList.add(hostSystem);
-                }
-                DBUtils.closeRs(rs);
-                DBUtils.closeStmt(stmt);
+                sortedSet.setItemList(getSystems(con, instanceIdList, orderBy));
 
             } catch (Exception e) {
                 log.error(e.toString(), e);
@@ -194,14 +176,54 @@ public class SystemDB {
             finally {
                 DBUtils.closeConn(con);
             }
-
-            sortedSet.setItemList(hostSystemList);
         }
         return sortedSet;
 
     }
 
 
+    /**
+     * returns systems for the instance ids in a single query. the ids are bound as one array parameter
+     * and joined against the system table through the instance id index
+     *
+     * @param con            DB connection
+     * @param instanceIdList instance ids to select
+     * @param orderBy        order by clause or empty string
+     * @return host system list
+     */
+    private static List<HostSystem> getSystems(Connection con, List<String> instanceIdList, String orderBy) throws SQLException {
+
+        List<HostSystem> hostSystemList = new ArrayList<>();
+
+        PreparedStatement stmt = con.prepareStatement(SELECT_BY_INSTANCE_ID_LIST_SQL + orderBy);
+        stmt.setObject(1, new LinkedHashSet<>(instanceIdList).toArray());
+        ResultSet rs = stmt.executeQuery();
+
+        while (rs.next()) {
+            HostSystem hostSystem = new HostSystem();
+            hostSystem.setId(rs.getLong(ID));
+            hostSystem.setDisplayNm(rs.getString(DISPLAY_NM));
+            hostSystem.setInstance(rs.getString(INSTANCE_ID));
+            hostSystem.setUser(rs.getString(USER));
+            hostSystem.setHost(rs.getString(HOST));
+            hostSystem.setPort(rs.getInt(PORT));
+            hostSystem.setKeyId(rs.getLong(KEY_ID));
+            hostSystem.setEc2Region(rs.getString(REGION));
+            hostSystem.setState(rs.getString(STATE));
+            hostSystem.setInstanceStatus(rs.getString(INSTANCE_STATUS));
+            hostSystem.setSystemStatus(rs.getString(SYSTEM_STATUS));
+            hostSystem.setMonitorAlarm(rs.getInt(M_ALARM));
+            hostSystem.setMonitorInsufficientData(rs.getInt(M_INSUFFICIENT_DATA));
+            hostSystem.setMonitorOk(rs.getInt(M_OK));
+            hostSystemList.add(hostSystem);
+        }
+        DBUtils.closeRs(rs);
+        DBUtils.closeStmt(stmt);
+
+        return hostSystemList;
+    }
+
+
     /**
      * returns system by id
      *
@@ -317,7 +339,7 @@ public class SystemDB {
 
         try {
 
-            PreparedStatement stmt = con.prepareStatement("select * from  system where instance_id like ?");
+            PreparedStatement stmt = con.prepareStatement(SELECT_BY_INSTANCE_ID_SQL);
             stmt.setString(1, instanceId);
             ResultSet rs = stmt.executeQuery();
 
@@ -443,26 +465,55 @@ public class SystemDB {
 
 
     /**
-     * set host systems for region based on list
+     * inserts or updates host systems by instance id in one batched transaction, keeping the user and port
+     * already set on existing systems
      *
      * @param hostSystemList list of host system object
+     * @return true if the systems were written
      */
-    public static void setSystems(Collection<HostSystem> hostSystemList) {
+    public static boolean setSystems(Collection<HostSystem> hostSystemList) {
+        boolean saved = false;
         Connection con = null;
         try {
             con = DBUtils.getConn();
 
-            //insert new host systems
-            for (HostSystem hostSystem : hostSystemList) {
-                HostSystem hostSystemTmp = getSystem(con, hostSystem.getInstance());
-                if (hostSystemTmp == null) {
-                    insertSystem(con, hostSystem);
-                } else {
-                    hostSystem.setId(hostSystemTmp.getId());
-                    hostSystem.setUser(hostSystemTmp.getUser());
-                    hostSystem.setPort(hostSystemTmp.getPort());
-                    updateSystem(con, hostSystem);
+            boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            PreparedStatement stmt = con.prepareStatement("merge into system (display_nm, user, host, port, instance_id, key_id, region, state, instance_status, system_status, m_alarm, m_insufficient_data, m_ok) key(instance_id) " +
+                    "values (?, coalesce((select user from system where instance_id=?), ?), ?, coalesce((select port from system where instance_id=?), ?), ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            try {
+                int count = 0;
+                for (HostSystem hostSystem : hostSystemList) {
+                    stmt.setString(1, hostSystem.getDisplayNm());
+                    stmt.setString(2, hostSystem.getInstance());
+                    stmt.setString(3, hostSystem.getUser());
+                    stmt.setString(4, hostSystem.getHost());
+                    stmt.setString(5, hostSystem.getInstance());
+                    stmt.setInt(6, hostSystem.getPort());
+                    stmt.setString(7, hostSystem.getInstance());
+                    stmt.setLong(8, hostSystem.getKeyId());
+                    stmt.setString(9, hostSystem.getEc2Region());
+                    stmt.setString(10, hostSystem.getState());
+                    stmt.setString(11, hostSystem.getInstanceStatus());
+                    stmt.setString(12, hostSystem.getSystemStatus());
+                    stmt.setInt(13, hostSystem.getMonitorAlarm());
+                    stmt.setInt(14, hostSystem.getMonitorInsufficientData());
+                    stmt.setInt(15, hostSystem.getMonitorOk());
+                    stmt.addBatch();
+
+                    if (++count % MERGE_BATCH_SIZE == 0) {
+                        stmt.executeBatch();
+                    }
                 }
+                stmt.executeBatch();
+                con.commit();
+                saved = true;
+            } catch (Exception ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                DBUtils.closeStmt(stmt);
+                con.setAutoCommit(autoCommit);
             }
 
         } catch (Exception e) {
@@ -471,6 +522,54 @@ public class SystemDB {
         finally {
             DBUtils.closeConn(con);
         }
+        return saved;
+
+    }
+
+
+    /**
+     * deletes host systems by instance id in one batched transaction
+     *
+     * @param instanceIdList instance ids of systems to delete
+     * @return true if the systems were deleted
+     */
+    public static boolean deleteSystems(Collection<String> instanceIdList) {
+        boolean saved = false;
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+
+            boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            PreparedStatement stmt = con.prepareStatement("delete from system where instance_id=?");
+            try {
+                int count = 0;
+                for (String instanceId : instanceIdList) {
+                    stmt.setString(1, instanceId);
+                    stmt.addBatch();
+
+                    if (++count % MERGE_BATCH_SIZE == 0) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+                con.commit();
+                saved = true;
+            } catch (Exception ex) {
+                con.rollback();
+                throw ex;
+            } finally {
+                DBUtils.closeStmt(stmt);
+                con.setAutoCommit(autoCommit);
+            }
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return saved;
 
     }
 
@@ -483,24 +582,28 @@ public class SystemDB {
      */
     public static List<HostSystem> getSystems(List<String> instanceIdList) {
 
-        Connection con = null;
-
         List<HostSystem> hostSystemList = new ArrayList<>();
-        if(instanceIdList != null) {
-            for (String instanceId : instanceIdList) {
-
-                try {
-                    con = DBUtils.getConn();
-
-                    hostSystemList.add(getSystem(con, instanceId));
+        if (instanceIdList != null && !instanceIdList.isEmpty()) {
 
+            Connection con = null;
+            try {
+                con = DBUtils.getConn();
 
-                } catch (Exception e) {
-                    log.error(e.toString(), e);
-                } finally {
-                    DBUtils.closeConn(con);
+                //keep the order of the requested instance ids
+                Map<String, HostSystem> hostSystemMap = new HashMap<>();
+                for (HostSystem hostSystem : getSystems(con, instanceIdList, "")) {
+                    hostSystemMap.put(hostSystem.getInstance(), hostSystem);
+                }
+                for (String instanceId : new LinkedHashSet<>(instanceIdList)) {
+                    if (hostSystemMap.containsKey(instanceId)) {
+                        hostSystemList.add(hostSystemMap.get(instanceId));
+                    }
                 }
 
+            } catch (Exception e) {
+                log.error(e.toString(), e);
+            } finally {
+                DBUtils.closeConn(con);
             }
         }
 
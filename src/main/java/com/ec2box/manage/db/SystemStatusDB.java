@@ -53,6 +53,10 @@ public class SystemStatusDB {
     }
     public static final String STATUS_CD = "status_cd";
 
+    //queries with a plan checked against the migrated schema by DBQueryPlanTest
+    static final String SELECT_BY_USER_SQL = "select * from status where user_id=? order by id asc";
+    static final String SELECT_PENDING_BY_USER_SQL = "select * from status where (status_cd like ? or status_cd like ? or status_cd like ?) and user_id=? order by id asc";
+
     /**
      * set the initial status for selected systems
      *
@@ -232,7 +236,7 @@ public class SystemStatusDB {
         List<HostSystem> hostSystemList = new ArrayList<>();
         try {
 
-            PreparedStatement stmt = con.prepareStatement("select * from status where user_id=? order by id asc");
+            PreparedStatement stmt = con.prepareStatement(SELECT_BY_USER_SQL);
             stmt.setLong(1, userId);
             ResultSet rs = stmt.executeQuery();
 
@@ -299,7 +303,7 @@ public class SystemStatusDB {
         Connection con = null;
         try {
             con = DBUtils.getConn();
-            PreparedStatement stmt = con.prepareStatement("select * from status where (status_cd like ? or status_cd like ? or status_cd like ?) and user_id=? order by id asc");
+            PreparedStatement stmt = con.prepareStatement(SELECT_PENDING_BY_USER_SQL);
             stmt.setString(1,HostSystem.INITIAL_STATUS);
             stmt.setString(2,HostSystem.AUTH_FAIL_STATUS);
             stmt.setString(3,HostSystem.PUBLIC_KEY_FAIL_STATUS);
@@ -323,4 +327,41 @@ public class SystemStatusDB {
 
     }
 
+    /**
+     * returns all systems that have not been tried or need a password or passphrase
+     *
+     * @param userId user id
+     * @return systemStatus systems
+     */
+    public static List<HostSystem> getPendingSystems(Long userId) {
+
+        List<HostSystem> hostSystemList = new ArrayList<>();
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement(SELECT_PENDING_BY_USER_SQL);
+            stmt.setString(1,HostSystem.INITIAL_STATUS);
+            stmt.setString(2,HostSystem.AUTH_FAIL_STATUS);
+            stmt.setString(3,HostSystem.PUBLIC_KEY_FAIL_STATUS);
+            stmt.setLong(4,userId);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                HostSystem hostSystem = SystemDB.getSystem(con, rs.getLong("id"));
+                hostSystem.setStatusCd(rs.getString(STATUS_CD));
+                hostSystemList.add(hostSystem);
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            log.error(e.toString(), e);
+        }
+        finally {
+            DBUtils.closeConn(con);
+        }
+        return hostSystemList;
+
+    }
+
 }
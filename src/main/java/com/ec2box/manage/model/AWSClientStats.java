@@ -0,0 +1,105 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value object that contains usage stats for a cached AWS service client
+ */
+public class AWSClientStats {
+
+    Long awsCredId;
+    String service;
+    String ec2Region;
+    Long createdTm = System.currentTimeMillis();
+    Integer maxConnections;
+    AtomicLong requestCount = new AtomicLong();
+    AtomicLong errorCount = new AtomicLong();
+    AtomicInteger activeRequests = new AtomicInteger();
+
+    public AWSClientStats(Long awsCredId, String service, String ec2Region, Integer maxConnections) {
+        this.awsCredId = awsCredId;
+        this.service = service;
+        this.ec2Region = ec2Region;
+        this.maxConnections = maxConnections;
+    }
+
+    public Long getAwsCredId() {
+        return awsCredId;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getEc2Region() {
+        return ec2Region;
+    }
+
+    public Long getCreatedTm() {
+        return createdTm;
+    }
+
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    /**
+     * record the start of a service request
+     */
+    public void requestStarted() {
+        requestCount.incrementAndGet();
+        activeRequests.incrementAndGet();
+    }
+
+    /**
+     * record the end of a service request
+     *
+     * @param error true if the request failed
+     */
+    public void requestFinished(boolean error) {
+        activeRequests.decrementAndGet();
+        if (error) {
+            errorCount.incrementAndGet();
+        }
+    }
+}
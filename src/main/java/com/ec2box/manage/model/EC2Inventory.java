@@ -0,0 +1,83 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.model;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Value object that contains a versioned snapshot of the EC2 instances discovered for all AWS credentials and regions.
+ * The version only changes when a sync finds added, changed or removed systems.
+ */
+public class EC2Inventory {
+
+    long version;
+    long syncTm;
+    Map<String, HostSystem> hostSystemMap;
+    List<String> errorList;
+    List<EC2InventoryChange> changeList;
+
+    public EC2Inventory(long version, Map<String, HostSystem> hostSystemMap, List<String> errorList, List<EC2InventoryChange> changeList) {
+        this.version = version;
+        this.syncTm = System.currentTimeMillis();
+        this.hostSystemMap = Collections.unmodifiableMap(hostSystemMap);
+        this.errorList = Collections.unmodifiableList(errorList);
+        this.changeList = Collections.unmodifiableList(changeList);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSyncTm() {
+        return syncTm;
+    }
+
+    public Date getSyncDt() {
+        return new Date(syncTm);
+    }
+
+    public Map<String, HostSystem> getHostSystemMap() {
+        return hostSystemMap;
+    }
+
+    public List<String> getErrorList() {
+        return errorList;
+    }
+
+    /**
+     * returns the systems that changed in the sync that created this version
+     *
+     * @return change list
+     */
+    public List<EC2InventoryChange> getChangeList() {
+        return changeList;
+    }
+}
@@ -1,5 +1,5 @@
 /**
- *    Copyright (C) 2015 Loophole, LLC
+ *    Copyright (C) 2018 Loophole, LLC
  *
  *    This program is free software: you can redistribute it and/or  modify
  *    it under the terms of the GNU Affero General Public License, version 3,
@@ -27,29 +27,38 @@
  */
 package com.ec2box.manage.model;
 
-public class AuditWrapper {
+/**
+ * Value object that contains a system added, changed or removed between two inventory syncs
+ */
+public class EC2InventoryChange {
+
+    public static final String ADDED = "ADDED";
+    public static final String CHANGED = "CHANGED";
+    public static final String REMOVED = "REMOVED";
 
-	User user;
-	SessionOutput sessionOutput;
+    String changeType;
+    HostSystem previous;
+    HostSystem current;
 
-	public AuditWrapper(User user, SessionOutput sessionOutput) {
-		this.user=user;
-		this.sessionOutput=sessionOutput;
-	}
+    public EC2InventoryChange(String changeType, HostSystem previous, HostSystem current) {
+        this.changeType = changeType;
+        this.previous = previous;
+        this.current = current;
+    }
 
-	public User getUser() {
-		return user;
-	}
+    public String getChangeType() {
+        return changeType;
+    }
 
-	public void setUser(User user) {
-		this.user = user;
-	}
+    public HostSystem getPrevious() {
+        return previous;
+    }
 
-	public SessionOutput getSessionOutput() {
-		return sessionOutput;
-	}
+    public HostSystem getCurrent() {
+        return current;
+    }
 
-	public void setSessionOutput(SessionOutput sessionOutput) {
-		this.sessionOutput = sessionOutput;
-	}
-}
\ No newline at end of file
+    public String getInstance() {
+        return current != null ? current.getInstance() : previous.getInstance();
+    }
+}
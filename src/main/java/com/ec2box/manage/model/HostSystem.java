@@ -29,7 +29,10 @@ package com.ec2box.manage.model;
 
 import com.ec2box.common.util.AppConfig;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Value object that contains host system information
@@ -67,6 +70,9 @@ public class HostSystem {
 
 
     List<String> publicKeyList;
+    Map<String, String> tagMap = new HashMap<>();
+    List<String> securityGroupList = new ArrayList<>();
+    String fingerprint;
 
     public Long getId() {
         return id;
@@ -233,4 +239,28 @@ public class HostSystem {
     public void setInstance(String instance) {
         this.instance = instance;
     }
+
+    public Map<String, String> getTagMap() {
+        return tagMap;
+    }
+
+    public void setTagMap(Map<String, String> tagMap) {
+        this.tagMap = tagMap;
+    }
+
+    public List<String> getSecurityGroupList() {
+        return securityGroupList;
+    }
+
+    public void setSecurityGroupList(List<String> securityGroupList) {
+        this.securityGroupList = securityGroupList;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
 }
@@ -0,0 +1,146 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.model;
+
+/**
+ * Fixed capacity ring buffer that holds terminal output until it is sent to the web socket
+ */
+public class OutputBuffer {
+
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String DROPPED_MARKER = "\r\n[EC2Box: output dropped]\r\n";
+
+    private final char[] buffer;
+    private final boolean block;
+    //signaled before the writer waits so buffered output gets drained
+    private final Runnable drainListener;
+    //position of the first unread char
+    private int head = 0;
+    private int size = 0;
+    private boolean dropped = false;
+    private boolean closed = false;
+
+    /**
+     * @param capacity       max number of chars held
+     * @param overflowPolicy {@link #OVERFLOW_BLOCK} to make the writer wait for space, otherwise the oldest output is dropped
+     * @param drainListener  signaled when the writer has to wait for the buffer to be drained
+     */
+    public OutputBuffer(int capacity, String overflowPolicy, Runnable drainListener) {
+        this.buffer = new char[capacity];
+        this.block = OVERFLOW_BLOCK.equals(overflowPolicy);
+        this.drainListener = drainListener;
+    }
+
+    /**
+     * writes chars to the buffer. when full either waits for the buffer to be drained or drops the oldest output
+     *
+     * @param value  Array that is the source of characters
+     * @param offset The initial offset
+     * @param count  The length
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public synchronized void write(char[] value, int offset, int count) throws InterruptedException {
+        if (block) {
+            while (count > 0 && !closed) {
+                if (size == buffer.length && !closed && drainListener != null) {
+                    drainListener.run();
+                }
+                while (size == buffer.length && !closed) {
+                    wait();
+                }
+                int len = Math.min(count, buffer.length - size);
+                put(value, offset, len);
+                offset = offset + len;
+                count = count - len;
+            }
+        } else if (!closed) {
+            //only the newest chars fit
+            if (count > buffer.length) {
+                offset = offset + count - buffer.length;
+                count = buffer.length;
+                dropped = true;
+            }
+            int overflow = size + count - buffer.length;
+            if (overflow > 0) {
+                head = (head + overflow) % buffer.length;
+                size = size - overflow;
+                dropped = true;
+            }
+            put(value, offset, count);
+        }
+    }
+
+    /**
+     * copies chars to the end of the buffer
+     */
+    private void put(char[] value, int offset, int count) {
+        int tail = (head + size) % buffer.length;
+        int first = Math.min(count, buffer.length - tail);
+        System.arraycopy(value, offset, buffer, tail, first);
+        System.arraycopy(value, offset + first, buffer, 0, count - first);
+        size = size + count;
+    }
+
+    /**
+     * moves all buffered output to the string builder
+     *
+     * @param output string builder to append output to
+     * @return number of chars appended
+     */
+    public synchronized int drainTo(StringBuilder output) {
+        int start = output.length();
+        if (dropped) {
+            output.append(DROPPED_MARKER);
+            dropped = false;
+        }
+        int first = Math.min(size, buffer.length - head);
+        output.append(buffer, head, first);
+        output.append(buffer, 0, size - first);
+        head = 0;
+        size = 0;
+        notifyAll();
+        return output.length() - start;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0 && !dropped;
+    }
+
+    /**
+     * closes the buffer and releases any waiting writer
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.model;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * upload being pushed to host systems of a user session and the progress for each system
+ */
+public class PushJob {
+
+    Long userId;
+    Long sessionId;
+    File source;
+    //opened once and read by all pushes
+    FileChannel sourceChannel;
+    //SHA-256 of the source, also its name in the upload store
+    String checksum;
+    String fileName;
+    String pushDir;
+    long fileSize;
+    long startTm = System.currentTimeMillis();
+    volatile long endTm;
+    List<HostSystem> hostSystemList;
+    //host system id, bytes sent
+    Map<Long, AtomicLong> hostBytesMap = new ConcurrentHashMap<>();
+    AtomicLong bytesSent = new AtomicLong(0);
+    AtomicInteger completed = new AtomicInteger(0);
+    Set<Long> completedSet = ConcurrentHashMap.newKeySet();
+    AtomicLong progressTm = new AtomicLong(0);
+    //host system id, time push started or completed
+    Map<Long, Long> hostStartTmMap = new ConcurrentHashMap<>();
+    Map<Long, Long> hostEndTmMap = new ConcurrentHashMap<>();
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public Long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public void setSource(File source) {
+        this.source = source;
+    }
+
+    public FileChannel getSourceChannel() {
+        return sourceChannel;
+    }
+
+    public void setSourceChannel(FileChannel sourceChannel) {
+        this.sourceChannel = sourceChannel;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getPushDir() {
+        return pushDir;
+    }
+
+    public void setPushDir(String pushDir) {
+        this.pushDir = pushDir;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getStartTm() {
+        return startTm;
+    }
+
+    public void setStartTm(long startTm) {
+        this.startTm = startTm;
+    }
+
+    public long getEndTm() {
+        return endTm;
+    }
+
+    public void setEndTm(long endTm) {
+        this.endTm = endTm;
+    }
+
+    public List<HostSystem> getHostSystemList() {
+        return hostSystemList;
+    }
+
+    public void setHostSystemList(List<HostSystem> hostSystemList) {
+        this.hostSystemList = hostSystemList;
+    }
+
+    /**
+     * adds bytes sent to a host system
+     *
+     * @param hostSystemId host system id
+     * @param count        bytes sent
+     */
+    public void addBytesSent(Long hostSystemId, long count) {
+        hostBytesMap.computeIfAbsent(hostSystemId, k -> new AtomicLong(0)).addAndGet(count);
+        bytesSent.addAndGet(count);
+    }
+
+    /**
+     * sets bytes sent to a host system, used when a transfer starts over or resumes from the size on the system
+     *
+     * @param hostSystemId host system id
+     * @param count        bytes already on the system
+     */
+    public void setBytesSent(Long hostSystemId, long count) {
+        long previous = hostBytesMap.computeIfAbsent(hostSystemId, k -> new AtomicLong(0)).getAndSet(count);
+        bytesSent.addAndGet(count - previous);
+    }
+
+    /**
+     * returns bytes sent to a host system
+     *
+     * @param hostSystemId host system id
+     * @return bytes sent
+     */
+    public long getBytesSent(Long hostSystemId) {
+        AtomicLong count = hostBytesMap.get(hostSystemId);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * marks push to a host system as complete
+     *
+     * @param hostSystemId host system id
+     * @return true if the push has completed for all host systems
+     */
+    public boolean complete(Long hostSystemId) {
+        hostEndTmMap.put(hostSystemId, System.currentTimeMillis());
+        completedSet.add(hostSystemId);
+        if (completed.incrementAndGet() >= hostSystemList.size()) {
+            endTm = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isCompleted(Long hostSystemId) {
+        return completedSet.contains(hostSystemId);
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public boolean isFinished() {
+        return completed.get() >= hostSystemList.size();
+    }
+
+    /**
+     * marks push to a host system as started
+     *
+     * @param hostSystemId host system id
+     */
+    public void start(Long hostSystemId) {
+        hostStartTmMap.put(hostSystemId, System.currentTimeMillis());
+    }
+
+    /**
+     * returns bytes sent per second to a host system
+     *
+     * @param hostSystemId host system id
+     * @return throughput
+     */
+    public long getThroughput(Long hostSystemId) {
+        Long hostStartTm = hostStartTmMap.get(hostSystemId);
+        if (hostStartTm == null) {
+            return 0;
+        }
+        Long hostEndTm = hostEndTmMap.get(hostSystemId);
+        long elapsed = (hostEndTm == null ? System.currentTimeMillis() : hostEndTm) - hostStartTm;
+        return elapsed > 0 ? getBytesSent(hostSystemId) * 1000 / elapsed : 0;
+    }
+
+    /**
+     * returns bytes sent per second for all host systems
+     *
+     * @return throughput
+     */
+    public long getThroughput() {
+        long elapsed = (isFinished() ? endTm : System.currentTimeMillis()) - startTm;
+        return elapsed > 0 ? bytesSent.get() * 1000 / elapsed : 0;
+    }
+
+    /**
+     * claims the next progress update if the interval has passed since the last one
+     *
+     * @param interval min time in milliseconds between updates
+     * @return true if progress should be sent
+     */
+    public boolean claimProgress(long interval) {
+        long now = System.currentTimeMillis();
+        long last = progressTm.get();
+        return now - last >= interval && progressTm.compareAndSet(last, now);
+    }
+}
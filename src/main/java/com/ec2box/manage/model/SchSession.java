@@ -32,6 +32,7 @@ import com.jcraft.jsch.Session;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.Future;
 
 
 /**
@@ -47,6 +48,7 @@ public class SchSession {
     InputStream outFromChannel;
     OutputStream inputToChannel;
     HostSystem hostSystem;
+    Future<?> readerTask;
 
 
     public Session getSession() {
@@ -104,4 +106,22 @@ public class SchSession {
     public void setUserId(Long userId) {
         this.userId = userId;
     }
+
+    public Future<?> getReaderTask() {
+        return readerTask;
+    }
+
+    public void setReaderTask(Future<?> readerTask) {
+        this.readerTask = readerTask;
+    }
+
+    /**
+     * stops the task reading output from the channel
+     */
+    public void cancelReaderTask() {
+        if (readerTask != null) {
+            readerTask.cancel(true);
+            readerTask = null;
+        }
+    }
 }
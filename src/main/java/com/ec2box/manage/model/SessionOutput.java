@@ -28,12 +28,13 @@
 package com.ec2box.manage.model;
 
 /**
- * host id and string builder output
+ * host id and string builder output. output is read from the bounded output buffer into the same string builder each time it is sent
  */
 public class SessionOutput extends HostSystem {
 
     Long sessionId;
     StringBuilder output = new StringBuilder();
+    transient OutputBuffer outputBuffer;
 
     public SessionOutput() {
 
@@ -63,4 +64,12 @@ public class SessionOutput extends HostSystem {
     public void setOutput(StringBuilder output) {
         this.output = output;
     }
+
+    public OutputBuffer getOutputBuffer() {
+        return outputBuffer;
+    }
+
+    public void setOutputBuffer(OutputBuffer outputBuffer) {
+        this.outputBuffer = outputBuffer;
+    }
 }
@@ -0,0 +1,157 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.model;
+
+import java.sql.Timestamp;
+
+/**
+ * value object for a compressed segment of terminal output for a host in a session
+ */
+public class TerminalLogSegment {
+
+    Long id;
+    Long sessionId;
+    Integer instanceId;
+    Integer segmentNo;
+    //number of chars output by the terminal before this segment
+    Long startOffset;
+    //number of chars in this segment
+    Integer outputLength;
+    Timestamp startTm;
+    Timestamp endTm;
+    String displayNm;
+    String user;
+    String host;
+    Integer port;
+    //deflate compressed log records
+    byte[] output;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Integer getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(Integer instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public Integer getSegmentNo() {
+        return segmentNo;
+    }
+
+    public void setSegmentNo(Integer segmentNo) {
+        this.segmentNo = segmentNo;
+    }
+
+    public Long getStartOffset() {
+        return startOffset;
+    }
+
+    public void setStartOffset(Long startOffset) {
+        this.startOffset = startOffset;
+    }
+
+    public Integer getOutputLength() {
+        return outputLength;
+    }
+
+    public void setOutputLength(Integer outputLength) {
+        this.outputLength = outputLength;
+    }
+
+    public Timestamp getStartTm() {
+        return startTm;
+    }
+
+    public void setStartTm(Timestamp startTm) {
+        this.startTm = startTm;
+    }
+
+    public Timestamp getEndTm() {
+        return endTm;
+    }
+
+    public void setEndTm(Timestamp endTm) {
+        this.endTm = endTm;
+    }
+
+    public String getDisplayNm() {
+        return displayNm;
+    }
+
+    public void setDisplayNm(String displayNm) {
+        this.displayNm = displayNm;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public void setPort(Integer port) {
+        this.port = port;
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+
+    public void setOutput(byte[] output) {
+        this.output = output;
+    }
+}
@@ -29,11 +29,14 @@ package com.ec2box.manage.model;
 
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class UserSchSessions {
 
     Map<Integer, SchSession> schSessionMap = new ConcurrentHashMap<>();
+    //instance ids held by sessions that are still connecting
+    Set<Integer> reservedInstanceIds = ConcurrentHashMap.newKeySet();
 
 
     public Map<Integer, SchSession> getSchSessionMap() {
@@ -44,4 +47,12 @@ public class UserSchSessions {
         this.schSessionMap = schSessionMap;
     }
 
+    public Set<Integer> getReservedInstanceIds() {
+        return reservedInstanceIds;
+    }
+
+    public void setReservedInstanceIds(Set<Integer> reservedInstanceIds) {
+        this.reservedInstanceIds = reservedInstanceIds;
+    }
+
 }
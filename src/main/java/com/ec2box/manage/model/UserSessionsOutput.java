@@ -29,12 +29,77 @@ package com.ec2box.manage.model;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * output for all terminals of a user session and the signal used to push it to the web socket
+ */
 public class UserSessionsOutput {
 
     //instance id, host output
     Map<Integer, SessionOutput> sessionOutputMap = new ConcurrentHashMap<>();
+    //called when output has been added
+    private Runnable outputListener;
+    private boolean closed = false;
+    //latest upload push progress not yet sent, older progress is replaced
+    private AtomicReference<String> pushProgress = new AtomicReference<>();
+
+
+    /**
+     * signals the listener that new output is available
+     */
+    public void signalOutput() {
+        Runnable listener;
+        synchronized (this) {
+            listener = closed ? null : outputListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * sets the listener to signal when output is available and signals it for output added before it was set
+     *
+     * @param outputListener output listener
+     */
+    public void setOutputListener(Runnable outputListener) {
+        synchronized (this) {
+            this.outputListener = outputListener;
+        }
+        signalOutput();
+    }
 
+    /**
+     * sets the latest upload push progress and signals the listener
+     *
+     * @param progress push progress as json
+     */
+    public void setPushProgress(String progress) {
+        pushProgress.set(progress);
+        signalOutput();
+    }
+
+    /**
+     * returns the latest upload push progress once
+     *
+     * @return push progress as json or null if not changed since last taken
+     */
+    public String takePushProgress() {
+        return pushProgress.getAndSet(null);
+    }
+
+    /**
+     * closes the user session output so the listener is no longer signaled
+     */
+    public synchronized void close() {
+        closed = true;
+        outputListener = null;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
 
     public Map<Integer, SessionOutput> getSessionOutputMap() {
         return sessionOutputMap;
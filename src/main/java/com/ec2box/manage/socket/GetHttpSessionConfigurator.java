@@ -27,16 +27,24 @@
  */
 package com.ec2box.manage.socket;
 
+import com.ec2box.common.util.AppConfig;
+
 import javax.servlet.http.HttpSession;
+import javax.websocket.Extension;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpointConfig;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Configure web sockets and set the http session
  */
 public class GetHttpSessionConfigurator extends ServerEndpointConfig.Configurator
 {
+    public static final String PER_MESSAGE_DEFLATE = "permessage-deflate";
+    public static final boolean ENABLE_COMPRESSION = !"false".equals(AppConfig.getProperty("websocketCompression"));
+
     @Override
     public void modifyHandshake(ServerEndpointConfig config,
                                 HandshakeRequest request,
@@ -45,4 +53,19 @@ public class GetHttpSessionConfigurator extends ServerEndpointConfig.Configurato
         HttpSession httpSession = (HttpSession)request.getHttpSession();
         config.getUserProperties().put(HttpSession.class.getName(),httpSession);
     }
+
+    /**
+     * negotiates per-message deflate with the browser unless compression is disabled
+     */
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested)
+    {
+        List<Extension> extensionList = new ArrayList<>();
+        for (Extension extension : super.getNegotiatedExtensions(installed, requested)) {
+            if (ENABLE_COMPRESSION || !PER_MESSAGE_DEFLATE.equals(extension.getName())) {
+                extensionList.add(extension);
+            }
+        }
+        return extensionList;
+    }
 }
@@ -35,6 +35,7 @@ import com.ec2box.manage.control.SecureShellKtrl;
 import com.ec2box.manage.model.SchSession;
 import com.ec2box.manage.model.UserSchSessions;
 import com.ec2box.manage.task.SentOutputTask;
+import com.ec2box.manage.util.PushUtil;
 import com.ec2box.manage.util.SessionOutputUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -78,9 +79,9 @@ public class SecureShellWS {
         this.sessionId = AuthUtil.getSessionId(httpSession);
         this.session = session;
 
-        Runnable run=new SentOutputTask(sessionId, session, UserDB.getUser(AuthUtil.getUserId(httpSession)));
-        Thread thread = new Thread(run);
-        thread.start();
+        //send output on the shared sender pool when signaled
+        SentOutputTask sentOutputTask = new SentOutputTask(sessionId, session, UserDB.getUser(AuthUtil.getUserId(httpSession)));
+        SessionOutputUtil.getUserSessionsOutput(sessionId).setOutputListener(sentOutputTask::signal);
 
     }
 
@@ -142,6 +143,7 @@ public class SecureShellWS {
                     //disconnect ssh session
                     schSession.getChannel().disconnect();
                     schSession.getSession().disconnect();
+                    schSession.cancelReaderTask();
                     schSession.setChannel(null);
                     schSession.setSession(null);
                     schSession.setInputToChannel(null);
@@ -155,9 +157,11 @@ public class SecureShellWS {
                 //clear and remove session map for user
                 schSessionMap.clear();
                 SecureShellKtrl.getUserSchSessionMap().remove(sessionId);
-                SessionOutputUtil.removeUserSession(sessionId);
             }
         }
+        //remove output and stop signaling sender for the session
+        SessionOutputUtil.removeUserSession(sessionId);
+        PushUtil.removePushJob(sessionId);
 
 
     }
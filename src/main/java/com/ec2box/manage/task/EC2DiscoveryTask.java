@@ -0,0 +1,209 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.task;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.*;
+import com.ec2box.common.util.AppConfig;
+import com.ec2box.manage.db.EC2KeyDB;
+import com.ec2box.manage.model.AWSCred;
+import com.ec2box.manage.model.EC2Key;
+import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.util.AWSClientUtil;
+import com.ec2box.manage.util.EC2StatusUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * Task to discover the EC2 instances, status checks and alarms for a single AWS credential and region
+ */
+public class EC2DiscoveryTask implements Callable<Integer> {
+
+    //max instances returned for each describeInstances page, AWS allows 5 to 1000
+    public static final int DESCRIBE_PAGE_SIZE = StringUtils.isNumeric(AppConfig.getProperty("awsDescribePageSize")) ? Math.max(5, Math.min(1000, Integer.parseInt(AppConfig.getProperty("awsDescribePageSize")))) : 1000;
+
+    AWSCred awsCred;
+    String ec2Region;
+    List<Filter> filterList;
+    boolean showStatus;
+    Consumer<HostSystem> consumer;
+
+    public EC2DiscoveryTask(AWSCred awsCred, String ec2Region, List<Filter> filterList, boolean showStatus, Consumer<HostSystem> consumer) {
+        this.awsCred = awsCred;
+        this.ec2Region = ec2Region;
+        this.filterList = filterList;
+        this.showStatus = showStatus;
+        this.consumer = consumer;
+    }
+
+    public AWSCred getAwsCred() {
+        return awsCred;
+    }
+
+    public String getEc2Region() {
+        return ec2Region;
+    }
+
+    /**
+     * pages through instances with keys set, passing each page of host systems to the consumer as it is read
+     *
+     * @return number of host systems discovered
+     */
+    public Integer call() {
+
+        //only return systems that have keys set
+        Map<String, Long> keyIdMap = new HashMap<>();
+        for (EC2Key ec2Key : EC2KeyDB.getEC2KeyByRegion(ec2Region, awsCred.getId())) {
+            keyIdMap.put(ec2Key.getKeyNm(), ec2Key.getId());
+        }
+        if (keyIdMap.isEmpty()) {
+            return 0;
+        }
+
+        AmazonEC2 service = AWSClientUtil.getEC2Client(awsCred, ec2Region);
+
+        DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest();
+        describeInstancesRequest.withFilters(new Filter("key-name", new ArrayList<>(keyIdMap.keySet())));
+        describeInstancesRequest.withFilters(filterList);
+        describeInstancesRequest.setMaxResults(DESCRIBE_PAGE_SIZE);
+
+        int count = 0;
+        Map<String, EC2StatusUtil.AlarmCount> alarmIndex = null;
+        do {
+            DescribeInstancesResult describeInstancesResult = service.describeInstances(describeInstancesRequest);
+
+            Map<String, HostSystem> hostSystemMap = new LinkedHashMap<>();
+            for (Reservation res : describeInstancesResult.getReservations()) {
+                for (Instance instance : res.getInstances()) {
+                    HostSystem hostSystem = toHostSystem(instance);
+                    hostSystem.setKeyId(keyIdMap.get(instance.getKeyName()));
+                    hostSystemMap.put(hostSystem.getInstance(), hostSystem);
+                }
+            }
+
+            if (showStatus && !hostSystemMap.isEmpty()) {
+                EC2StatusUtil.setStatus(service, hostSystemMap);
+                //alarms are indexed once for the region when the first instances are found
+                if (alarmIndex == null) {
+                    alarmIndex = EC2StatusUtil.getAlarmIndex(AWSClientUtil.getCloudWatchClient(awsCred, ec2Region));
+                }
+                EC2StatusUtil.setAlarms(alarmIndex, hostSystemMap);
+            }
+
+            for (HostSystem hostSystem : hostSystemMap.values()) {
+                consumer.accept(hostSystem);
+            }
+            count = count + hostSystemMap.size();
+
+            describeInstancesRequest.setNextToken(describeInstancesResult.getNextToken());
+        } while (StringUtils.isNotEmpty(describeInstancesRequest.getNextToken()) && !Thread.currentThread().isInterrupted());
+
+        return count;
+    }
+
+    /**
+     * creates host system from instance
+     *
+     * @param instance EC2 instance
+     * @return host system
+     */
+    private HostSystem toHostSystem(Instance instance) {
+
+        HostSystem hostSystem = new HostSystem();
+        hostSystem.setInstance(instance.getInstanceId());
+
+        // (optionally) use private_ip configured, otherwise
+        // check for public dns if doesn't exist set to ip or pvt dns
+        if ("true".equals(AppConfig.getProperty("useEC2PvtIP")) && StringUtils.isNotEmpty(instance.getPrivateIpAddress())) {
+            hostSystem.setHost(instance.getPrivateIpAddress());
+        } else if ("true".equals(AppConfig.getProperty("useEC2PvtDNS")) && StringUtils.isNotEmpty(instance.getPrivateDnsName())) {
+            hostSystem.setHost(instance.getPrivateDnsName());
+        } else if (StringUtils.isNotEmpty(instance.getPublicDnsName())) {
+            hostSystem.setHost(instance.getPublicDnsName());
+        } else if (StringUtils.isNotEmpty(instance.getPublicIpAddress())) {
+            hostSystem.setHost(instance.getPublicIpAddress());
+        } else {
+            hostSystem.setHost(instance.getPrivateIpAddress());
+        }
+
+        hostSystem.setEc2Region(ec2Region);
+        hostSystem.setState(instance.getState().getName());
+        for (GroupIdentifier group : instance.getSecurityGroups()) {
+            hostSystem.getSecurityGroupList().add(group.getGroupName());
+        }
+        for (Tag tag : instance.getTags()) {
+            hostSystem.getTagMap().put(tag.getKey(), tag.getValue());
+            if ("Name".equals(tag.getKey())) {
+                hostSystem.setDisplayNm(tag.getValue());
+            } else if (AppConfig.getProperty("userTagName").equals(tag.getKey())) {
+                hostSystem.setUser(tag.getValue());
+            }
+        }
+        //if no display name set to host
+        if (StringUtils.isEmpty(hostSystem.getDisplayNm())) {
+            hostSystem.setDisplayNm(hostSystem.getHost());
+        }
+        hostSystem.setFingerprint(getFingerprint(instance, hostSystem));
+        return hostSystem;
+    }
+
+    /**
+     * hashes the tags, security groups and network fields of an instance to detect changes between syncs
+     *
+     * @param instance   EC2 instance
+     * @param hostSystem host system
+     * @return fingerprint as hex
+     */
+    private String getFingerprint(Instance instance, HostSystem hostSystem) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(instance.getKeyName()).append('\n')
+                .append(instance.getPrivateIpAddress()).append('\n')
+                .append(instance.getPrivateDnsName()).append('\n')
+                .append(instance.getPublicIpAddress()).append('\n')
+                .append(instance.getPublicDnsName()).append('\n');
+        for (Map.Entry<String, String> tag : new TreeMap<>(hostSystem.getTagMap()).entrySet()) {
+            sb.append(tag.getKey()).append('=').append(tag.getValue()).append('\n');
+        }
+        List<String> securityGroupList = new ArrayList<>(hostSystem.getSecurityGroupList());
+        Collections.sort(securityGroupList);
+        for (String securityGroup : securityGroupList) {
+            sb.append(securityGroup).append('\n');
+        }
+        return DigestUtils.sha1Hex(sb.toString());
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.task;
+
+import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.model.PushJob;
+import com.ec2box.manage.util.PushUtil;
+import com.ec2box.manage.util.SSHUtil;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+/**
+ * Task to push an upload to a single host system and track bytes sent for the push job
+ */
+public class PushTask implements Runnable {
+
+    PushJob pushJob;
+    HostSystem hostSystem;
+    Session session;
+
+    public PushTask(PushJob pushJob, HostSystem hostSystem, Session session) {
+        this.pushJob = pushJob;
+        this.hostSystem = hostSystem;
+        this.session = session;
+    }
+
+    public void run() {
+        pushJob.start(hostSystem.getId());
+        try {
+            SSHUtil.pushUpload(hostSystem, session, pushJob, new SftpProgressMonitor() {
+                @Override
+                public void init(int op, String src, String dest, long max) {
+                }
+
+                @Override
+                public boolean count(long count) {
+                    pushJob.addBytesSent(hostSystem.getId(), count);
+                    PushUtil.updateProgress(pushJob);
+                    return true;
+                }
+
+                @Override
+                public void end() {
+                }
+            });
+        } finally {
+            PushUtil.complete(pushJob, hostSystem);
+        }
+    }
+}
@@ -27,24 +27,31 @@
  */
 package com.ec2box.manage.task;
 
+import com.ec2box.common.util.AppConfig;
 import com.ec2box.manage.util.SessionOutputUtil;
 import com.ec2box.manage.model.SessionOutput;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
 
 
 /**
- * Task to watch for output read from the ssh session stream
+ * Task to watch for output read from the ssh session stream. Reads are batched until the
+ * stream is drained, the buffer is full or the flush interval has passed.
  */
 public class SecureShellTask implements Runnable {
 
     private static Logger log = LoggerFactory.getLogger(SecureShellTask.class);
 
+    //smaller read buffers make a read of zero chars possible and the read loop would never block
+    public static final int MIN_READ_BUFFER_SIZE = 1024;
+    public static final int READ_BUFFER_SIZE = StringUtils.isNumeric(AppConfig.getProperty("terminalReadBufferSize")) ? Math.max(MIN_READ_BUFFER_SIZE, Integer.parseInt(AppConfig.getProperty("terminalReadBufferSize"))) : 16384;
+    public static final long FLUSH_INTERVAL = (StringUtils.isNumeric(AppConfig.getProperty("terminalFlushInterval")) ? Long.parseLong(AppConfig.getProperty("terminalFlushInterval")) : 10L) * 1000000L;
+
     InputStream outFromChannel;
     SessionOutput sessionOutput;
 
@@ -56,17 +63,29 @@ public class SecureShellTask implements Runnable {
 
     public void run() {
         InputStreamReader isr = new InputStreamReader(outFromChannel);
-        BufferedReader br = new BufferedReader(isr);
         try {
 
             SessionOutputUtil.addOutput(sessionOutput);
 
-            char[] buff = new char[1024];
+            char[] buff = new char[READ_BUFFER_SIZE];
+            int pending = 0;
+            long batchStart = 0;
             int read;
-            while((read = br.read(buff)) != -1) {
-
-                SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), buff,0,read);
-                Thread.sleep(50);
+            while ((read = isr.read(buff, pending, buff.length - pending)) != -1) {
+
+                if (pending == 0) {
+                    batchStart = System.nanoTime();
+                }
+                pending = pending + read;
+
+                //flush when the buffer is full, the interval has passed or the stream is drained
+                if (pending >= buff.length || System.nanoTime() - batchStart >= FLUSH_INTERVAL || !isr.ready()) {
+                    SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), buff, 0, pending);
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), buff, 0, pending);
             }
 
             SessionOutputUtil.removeOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
@@ -27,53 +27,151 @@
  */
 package com.ec2box.manage.task;
 
+import com.ec2box.common.util.AppConfig;
 import com.ec2box.manage.model.User;
-import com.google.gson.Gson;
 import com.ec2box.manage.model.SessionOutput;
-import com.ec2box.manage.util.DBUtils;
 import com.ec2box.manage.util.SessionOutputUtil;
+import com.ec2box.manage.util.SystemAuditWriter;
+import com.ec2box.manage.util.ThreadPoolUtil;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.websocket.SendResult;
 import javax.websocket.Session;
-import java.sql.Connection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * class to send output to web socket client
+ * class to send output to web socket client. runs on the shared sender pool when signaled that
+ * output is available, signals received while sending are coalesced into one more pass. Frames are sent
+ * asynchronously so a slow client never holds a sender thread, the next pass is scheduled when the send completes.
+ * <p>
+ * Output is sent as a binary frame holding a record for each terminal with output:
+ * instance id (int), payload length (int) and the UTF-8 payload. Ints are big-endian. Upload push progress
+ * is sent as a json record with instance id {@link #PUSH_PROGRESS_ID}.
  */
 public class SentOutputTask implements Runnable {
 
     private static Logger log = LoggerFactory.getLogger(SentOutputTask.class);
 
+    private static final int RECORD_HEADER_SIZE = 8;
+    //terminal instance ids start at 1
+    public static final int PUSH_PROGRESS_ID = 0;
+    public static final long SEND_TIMEOUT = StringUtils.isNumeric(AppConfig.getProperty("terminalSendTimeout")) ? Long.parseLong(AppConfig.getProperty("terminalSendTimeout")) : 30000L;
+
     Session session;
     Long sessionId;
-    User user;
+    SystemAuditWriter systemAuditWriter;
+    //number of signals not yet handled, the task is scheduled while this is non-zero
+    private AtomicInteger pendingSignals = new AtomicInteger(0);
+    //reused between sends, only accessed by the running task or the completed send
+    private ByteBuffer frame = ByteBuffer.allocate(8192);
+    private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
     public SentOutputTask(Long sessionId, Session session, User user) {
         this.sessionId = sessionId;
         this.session = session;
-        this.user = user;
+        this.session.getAsyncRemote().setSendTimeout(SEND_TIMEOUT);
+        //only serialize audit events when the system audit log is enabled
+        this.systemAuditWriter = SystemAuditWriter.isEnabled() ? new SystemAuditWriter(sessionId, user) : null;
+    }
+
+    /**
+     * schedules the task on the sender pool unless it is already scheduled or running
+     */
+    public void signal() {
+        if (pendingSignals.getAndIncrement() == 0) {
+            ThreadPoolUtil.submitSender(this);
+        }
     }
 
     public void run() {
 
-        while (session.isOpen()) {
-            Connection con = DBUtils.getConn();
-            List<SessionOutput> outputList = SessionOutputUtil.getOutput(con, sessionId, user);
-            try {
-                if (outputList != null && !outputList.isEmpty()) {
-                    String json = new Gson().toJson(outputList);
-                    //send json to session
-                    this.session.getBasicRemote().sendText(json);
+        int signals = pendingSignals.get();
+        do {
+            if (session.isOpen()) {
+                List<SessionOutput> outputList = SessionOutputUtil.getOutput(sessionId, systemAuditWriter);
+                String pushProgress = SessionOutputUtil.getPushProgress(sessionId);
+                if ((outputList != null && !outputList.isEmpty()) || pushProgress != null) {
+                    final int handled = signals;
+                    try {
+                        //send binary frame to session, signals are released when the send completes
+                        this.session.getAsyncRemote().sendBinary(encodeFrame(outputList, pushProgress), result -> sent(result, handled));
+                        return;
+                    } catch (Exception ex) {
+                        log.error(ex.toString(), ex);
+                    }
                 }
-                Thread.sleep(50);
-            } catch (Exception ex) {
-                log.error(ex.toString(), ex);
             }
-            finally {
-                DBUtils.closeConn(con);
+            signals = pendingSignals.addAndGet(-signals);
+        } while (signals != 0);
+    }
+
+    /**
+     * releases the signals handled by the completed send and schedules another pass if output was signaled meanwhile
+     *
+     * @param result  send result
+     * @param handled number of signals handled by the send
+     */
+    private void sent(SendResult result, int handled) {
+        if (!result.isOK()) {
+            log.warn("Terminal output not sent: " + result.getException());
+        }
+        if (pendingSignals.addAndGet(-handled) != 0) {
+            ThreadPoolUtil.submitSender(this);
+        }
+    }
+
+    /**
+     * encodes output for all terminals and push progress into the reused frame buffer
+     *
+     * @param outputList   session output list
+     * @param pushProgress push progress or null
+     * @return frame ready to be sent
+     */
+    private ByteBuffer encodeFrame(List<SessionOutput> outputList, String pushProgress) {
+        frame.clear();
+        if (outputList != null) {
+            for (SessionOutput sessionOutput : outputList) {
+                encodeRecord(sessionOutput.getInstanceId(), sessionOutput.getOutput());
             }
         }
+        if (pushProgress != null) {
+            encodeRecord(PUSH_PROGRESS_ID, pushProgress);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * encodes a record into the frame buffer growing it if needed
+     *
+     * @param instanceId record id
+     * @param output     record payload
+     */
+    private void encodeRecord(int instanceId, CharSequence output) {
+        //a char never takes more than 3 bytes in UTF-8
+        int maxSize = RECORD_HEADER_SIZE + output.length() * 3;
+        if (frame.remaining() < maxSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + maxSize));
+            frame.flip();
+            larger.put(frame);
+            frame = larger;
+        }
+        int start = frame.position();
+        frame.putInt(instanceId);
+        frame.putInt(0);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(output), frame, true);
+        encoder.flush(frame);
+        frame.putInt(start + 4, frame.position() - start - RECORD_HEADER_SIZE);
     }
 }
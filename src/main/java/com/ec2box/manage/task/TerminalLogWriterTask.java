@@ -0,0 +1,282 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.task;
+
+import com.ec2box.manage.db.SessionAuditDB;
+import com.ec2box.manage.model.TerminalLog;
+import com.ec2box.manage.model.TerminalLogSegment;
+import com.ec2box.manage.util.DBUtils;
+import com.ec2box.manage.util.TerminalLogSegmentBuilder;
+import com.ec2box.manage.util.TerminalLogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task to group queued terminal output into compressed segments and write them to the audit log
+ * using batch inserts. A segment is written once it reaches the segment size or age, or when the session is closed.
+ * State for idle terminals is released and numbering continues from the last written segment when output resumes.
+ */
+public class TerminalLogWriterTask implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalLogWriterTask.class);
+
+    BlockingQueue<TerminalLog> queue;
+    //sessions closed while the queue was full
+    Set<Long> closedSessionSet;
+    int batchSize;
+    long flushInterval;
+    int segmentSize;
+    long segmentInterval;
+
+    Connection con;
+    PreparedStatement stmt;
+
+    //session id, instance id, terminal segment state
+    Map<Long, Map<Integer, TerminalState>> terminalStateMap = new HashMap<>();
+    List<TerminalLogSegmentBuilder> finished = new ArrayList<>();
+
+    public TerminalLogWriterTask(BlockingQueue<TerminalLog> queue, Set<Long> closedSessionSet, int batchSize, long flushInterval, int segmentSize, long segmentInterval) {
+        this.queue = queue;
+        this.closedSessionSet = closedSessionSet;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.segmentSize = segmentSize;
+        this.segmentInterval = segmentInterval;
+    }
+
+    public void run() {
+
+        List<TerminalLog> batch = new ArrayList<>(batchSize);
+
+        //keep draining after shutdown is requested until the queue is empty
+        while (TerminalLogUtil.isRunning() || !queue.isEmpty()) {
+            try {
+                TerminalLog terminalLog = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (terminalLog != null) {
+                    batch.add(terminalLog);
+                    queue.drainTo(batch, batchSize - 1);
+                    for (TerminalLog queued : batch) {
+                        append(queued);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                //shutdown was requested, remaining logs are drained on the next pass
+                Thread.interrupted();
+            }
+            finishExpired(TerminalLogUtil.isRunning() ? System.currentTimeMillis() - segmentInterval : Long.MAX_VALUE);
+            finishClosed();
+            write();
+        }
+        //write segments still open when shutdown completed
+        finishExpired(Long.MAX_VALUE);
+        write();
+        close();
+    }
+
+    /**
+     * appends log to the segment for the terminal or finishes all segments for the session on a close marker
+     *
+     * @param terminalLog queued log
+     */
+    private void append(TerminalLog terminalLog) {
+        try {
+            if (terminalLog.getInstanceId() == null) {
+                finishSession(terminalLog.getSessionId());
+            } else {
+                Map<Integer, TerminalState> sessionStateMap = terminalStateMap.computeIfAbsent(terminalLog.getSessionId(), k -> new HashMap<>());
+                TerminalState state = sessionStateMap.get(terminalLog.getInstanceId());
+                if (state == null) {
+                    state = new TerminalState();
+                    //continue after segments written before the state was released
+                    TerminalLogSegment last = SessionAuditDB.getLastTerminalLogSegment(getConnection(), terminalLog.getSessionId(), terminalLog.getInstanceId());
+                    if (last != null) {
+                        state.nextSegmentNo = last.getSegmentNo() + 1;
+                        state.nextOffset = last.getStartOffset() + last.getOutputLength();
+                    }
+                    sessionStateMap.put(terminalLog.getInstanceId(), state);
+                }
+                state.lastTm = System.currentTimeMillis();
+                if (state.builder == null) {
+                    state.builder = new TerminalLogSegmentBuilder(terminalLog, state.nextSegmentNo, state.nextOffset);
+                }
+                state.builder.append(terminalLog);
+                if (state.builder.getOutputLength() >= segmentSize) {
+                    state.finish();
+                }
+            }
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+            TerminalLogUtil.addFailed(1);
+        }
+    }
+
+    /**
+     * finishes all segments for a session and releases its state
+     *
+     * @param sessionId session id
+     */
+    private void finishSession(Long sessionId) {
+        Map<Integer, TerminalState> sessionStateMap = terminalStateMap.remove(sessionId);
+        if (sessionStateMap != null) {
+            for (TerminalState state : sessionStateMap.values()) {
+                state.finish();
+            }
+        }
+    }
+
+    /**
+     * finishes segments for sessions whose close marker could not be queued
+     */
+    private void finishClosed() {
+        Iterator<Long> iterator = closedSessionSet.iterator();
+        while (iterator.hasNext()) {
+            Long sessionId = iterator.next();
+            iterator.remove();
+            finishSession(sessionId);
+        }
+    }
+
+    /**
+     * finishes segments created before the given time and releases state for terminals idle since then
+     *
+     * @param createdBefore time in milliseconds
+     */
+    private void finishExpired(long createdBefore) {
+        Iterator<Map<Integer, TerminalState>> sessionIterator = terminalStateMap.values().iterator();
+        while (sessionIterator.hasNext()) {
+            Map<Integer, TerminalState> sessionStateMap = sessionIterator.next();
+            Iterator<TerminalState> stateIterator = sessionStateMap.values().iterator();
+            while (stateIterator.hasNext()) {
+                TerminalState state = stateIterator.next();
+                if (state.builder != null && state.builder.getCreatedTm() < createdBefore) {
+                    state.finish();
+                }
+                //finished segments are written before the next output is appended
+                if (state.builder == null && state.lastTm < createdBefore) {
+                    stateIterator.remove();
+                }
+            }
+            if (sessionStateMap.isEmpty()) {
+                sessionIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * writes finished segments as a batch reusing the connection and prepared statement
+     */
+    private void write() {
+        if (finished.isEmpty()) {
+            return;
+        }
+        int recordCount = 0;
+        try {
+            List<TerminalLogSegment> segmentList = new ArrayList<>(finished.size());
+            for (TerminalLogSegmentBuilder builder : finished) {
+                recordCount = recordCount + builder.getRecordCount();
+                segmentList.add(builder.build());
+            }
+            getConnection();
+            SessionAuditDB.insertTerminalLogSegments(stmt, segmentList);
+            con.commit();
+            TerminalLogUtil.addWritten(recordCount);
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+            TerminalLogUtil.addFailed(recordCount);
+            //get a new connection on the next write
+            close();
+        }
+        finished.clear();
+    }
+
+    /**
+     * returns the connection used by the writer, opening it and preparing the insert statement if needed
+     *
+     * @return DB connection
+     * @throws SQLException on DB error
+     */
+    private Connection getConnection() throws SQLException {
+        if (stmt == null) {
+            con = DBUtils.getConn();
+            con.setAutoCommit(false);
+            stmt = SessionAuditDB.prepareInsertTerminalLogSegment(con);
+        }
+        return con;
+    }
+
+    /**
+     * closes the statement and returns the connection to the pool
+     */
+    private void close() {
+        DBUtils.closeStmt(stmt);
+        stmt = null;
+        if (con != null) {
+            try {
+                con.rollback();
+                con.setAutoCommit(true);
+            } catch (Exception ex) {
+                log.error(ex.toString(), ex);
+            }
+        }
+        DBUtils.closeConn(con);
+        con = null;
+    }
+
+    /**
+     * segment being built for a terminal and the position of the next segment
+     */
+    private class TerminalState {
+        TerminalLogSegmentBuilder builder;
+        int nextSegmentNo = 0;
+        long nextOffset = 0;
+        //time output was last appended
+        long lastTm = 0;
+
+        void finish() {
+            if (builder != null) {
+                finished.add(builder);
+                nextSegmentNo++;
+                nextOffset = nextOffset + builder.getOutputLength();
+                builder = null;
+            }
+        }
+    }
+}
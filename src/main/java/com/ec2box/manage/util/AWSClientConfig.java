@@ -48,6 +48,7 @@ public class AWSClientConfig {
         String awsProxyPort = AppConfig.getProperty("awsProxyPort");
         String awsProxyUser = AppConfig.getProperty("awsProxyUser");
         String awsProxyPassword = AppConfig.getProperty("awsProxyPassword");
+        String awsMaxConnections = AppConfig.getProperty("awsMaxConnections");
 
         if("http".equals(awsProtocol)){
             config.setProtocol(Protocol.HTTP);
@@ -67,6 +68,9 @@ public class AWSClientConfig {
         if (StringUtils.isNotEmpty(awsProxyPassword)) {
             config.setProxyPassword(awsProxyPassword);
         }
+        if (StringUtils.isNumeric(awsMaxConnections)) {
+            config.setMaxConnections(Integer.parseInt(awsMaxConnections));
+        }
 
     }
 
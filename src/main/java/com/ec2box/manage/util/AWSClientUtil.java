@@ -0,0 +1,216 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.ec2box.manage.model.AWSClientStats;
+import com.ec2box.manage.model.AWSCred;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of long-lived AWS service clients keyed by credential, region and service.
+ * SDK clients are thread-safe and each holds its own connection pool, so they are
+ * built once and shared by all requests until the credential changes.
+ */
+public class AWSClientUtil {
+
+    public static final String EC2 = "ec2";
+    public static final String CLOUD_WATCH = "monitoring";
+
+    private static Logger log = LoggerFactory.getLogger(AWSClientUtil.class);
+
+    private static final Map<String, CachedClient> clientMap = new ConcurrentHashMap<>();
+
+    private AWSClientUtil() {
+    }
+
+    /**
+     * returns EC2 client for the default region, used for region lookups
+     *
+     * @param awsCred AWS credentials
+     * @return EC2 client
+     */
+    public static AmazonEC2 getEC2Client(AWSCred awsCred) {
+        String ec2Region = Regions.DEFAULT_REGION.getName();
+        return (AmazonEC2) getClient(awsCred, EC2, ec2Region, stats -> AmazonEC2ClientBuilder.standard()
+                .withRegion(Regions.DEFAULT_REGION)
+                .withCredentials(getCredentialsProvider(awsCred))
+                .withClientConfiguration(AWSClientConfig.getClientConfig())
+                .withRequestHandlers(stats).build());
+    }
+
+    /**
+     * returns EC2 client for region endpoint
+     *
+     * @param awsCred   AWS credentials
+     * @param ec2Region EC2 region endpoint
+     * @return EC2 client
+     */
+    public static AmazonEC2 getEC2Client(AWSCred awsCred, String ec2Region) {
+        return (AmazonEC2) getClient(awsCred, EC2, ec2Region, stats -> AmazonEC2ClientBuilder.standard()
+                .withCredentials(getCredentialsProvider(awsCred))
+                .withClientConfiguration(AWSClientConfig.getClientConfig())
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Region, EC2RegionUtil.getRegionNm(ec2Region)))
+                .withRequestHandlers(stats).build());
+    }
+
+    /**
+     * returns CloudWatch client for region endpoint
+     *
+     * @param awsCred   AWS credentials
+     * @param ec2Region EC2 region endpoint
+     * @return CloudWatch client
+     */
+    public static AmazonCloudWatch getCloudWatchClient(AWSCred awsCred, String ec2Region) {
+        return (AmazonCloudWatch) getClient(awsCred, CLOUD_WATCH, ec2Region, stats -> AmazonCloudWatchClientBuilder.standard()
+                .withCredentials(getCredentialsProvider(awsCred))
+                .withClientConfiguration(AWSClientConfig.getClientConfig())
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ec2Region.replace(EC2, CLOUD_WATCH), EC2RegionUtil.getRegionNm(ec2Region)))
+                .withRequestHandlers(stats).build());
+    }
+
+    /**
+     * removes and shuts down all clients built for an AWS credential
+     *
+     * @param awsCredId AWS credential id
+     */
+    public static void invalidate(Long awsCredId) {
+        String prefix = awsCredId + ":";
+        for (String key : new ArrayList<>(clientMap.keySet())) {
+            if (key.startsWith(prefix)) {
+                shutdownClient(clientMap.remove(key));
+            }
+        }
+    }
+
+    /**
+     * shuts down all cached clients
+     */
+    public static void shutdown() {
+        for (String key : new ArrayList<>(clientMap.keySet())) {
+            shutdownClient(clientMap.remove(key));
+        }
+    }
+
+    /**
+     * returns usage stats for all cached clients
+     *
+     * @return client stats list
+     */
+    public static List<AWSClientStats> getClientStats() {
+        List<AWSClientStats> statsList = new ArrayList<>();
+        for (CachedClient cachedClient : clientMap.values()) {
+            statsList.add(cachedClient.stats.stats);
+        }
+        return statsList;
+    }
+
+    private static Object getClient(AWSCred awsCred, String service, String ec2Region, ClientFactory factory) {
+        String key = awsCred.getId() + ":" + service + ":" + ec2Region;
+        return clientMap.computeIfAbsent(key, k -> {
+            StatsHandler stats = new StatsHandler(new AWSClientStats(awsCred.getId(), service, ec2Region,
+                    AWSClientConfig.getClientConfig().getMaxConnections()));
+            return new CachedClient(factory.build(stats), stats);
+        }).client;
+    }
+
+    private static AWSStaticCredentialsProvider getCredentialsProvider(AWSCred awsCred) {
+        return new AWSStaticCredentialsProvider(new BasicAWSCredentials(awsCred.getAccessKey(), awsCred.getSecretKey()));
+    }
+
+    private static void shutdownClient(CachedClient cachedClient) {
+        if (cachedClient == null) {
+            return;
+        }
+        try {
+            if (cachedClient.client instanceof AmazonEC2) {
+                ((AmazonEC2) cachedClient.client).shutdown();
+            } else if (cachedClient.client instanceof AmazonCloudWatch) {
+                ((AmazonCloudWatch) cachedClient.client).shutdown();
+            }
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    private interface ClientFactory {
+        Object build(RequestHandler2 stats);
+    }
+
+    private static class CachedClient {
+        final Object client;
+        final StatsHandler stats;
+
+        CachedClient(Object client, StatsHandler stats) {
+            this.client = client;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * counts requests passing through a client
+     */
+    private static class StatsHandler extends RequestHandler2 {
+        final AWSClientStats stats;
+
+        StatsHandler(AWSClientStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            stats.requestStarted();
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            stats.requestFinished(false);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            stats.requestFinished(true);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.ec2box.common.util.AppConfig;
+import com.ec2box.manage.db.AWSCredDB;
+import com.ec2box.manage.db.EC2KeyDB;
+import com.ec2box.manage.model.AWSCred;
+import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.task.EC2DiscoveryTask;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Utility to discover EC2 instances for every AWS credential and region at the same time
+ */
+public class EC2DiscoveryUtil {
+
+    private static Logger log = LoggerFactory.getLogger(EC2DiscoveryUtil.class);
+
+    //seconds to wait on all credential and region calls before returning partial results
+    public static final int DISCOVERY_TIMEOUT = StringUtils.isNumeric(AppConfig.getProperty("awsDiscoveryTimeout")) ? Integer.parseInt(AppConfig.getProperty("awsDiscoveryTimeout")) : 30;
+
+    private EC2DiscoveryUtil() {
+    }
+
+    /**
+     * describes instances for all AWS credentials and regions with keys, merging into the host system map.
+     * Instances are merged a page at a time as each region is read. A region that fails or times out adds an
+     * error and may be missing some or all of its systems.
+     *
+     * @param filterList    filters for describe instance requests
+     * @param showStatus    true to include status checks and alarms
+     * @param hostSystemMap host systems by instance id
+     * @param errorList     errors for regions that could not be discovered
+     * @return tasks for the credentials and regions that could not be discovered
+     */
+    public static List<EC2DiscoveryTask> discover(List<Filter> filterList, boolean showStatus, Map<String, HostSystem> hostSystemMap, List<String> errorList) {
+
+        List<String> ec2RegionList = EC2KeyDB.getEC2Regions();
+
+        //pages are merged as they arrive until the deadline, late pages from cancelled tasks are dropped
+        Object mergeLock = new Object();
+        AtomicBoolean closed = new AtomicBoolean(false);
+        Consumer<HostSystem> consumer = hostSystem -> {
+            synchronized (mergeLock) {
+                if (!closed.get()) {
+                    hostSystemMap.put(hostSystem.getInstance(), hostSystem);
+                }
+            }
+        };
+
+        Map<EC2DiscoveryTask, Future<Integer>> futureMap = new LinkedHashMap<>();
+        for (AWSCred awsCred : AWSCredDB.getAWSCredList()) {
+            for (String ec2Region : ec2RegionList) {
+                EC2DiscoveryTask task = new EC2DiscoveryTask(awsCred, ec2Region, filterList, showStatus, consumer);
+                futureMap.put(task, ThreadPoolUtil.submitDiscovery(task));
+            }
+        }
+
+        List<EC2DiscoveryTask> failedList = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(DISCOVERY_TIMEOUT);
+        for (Map.Entry<EC2DiscoveryTask, Future<Integer>> entry : futureMap.entrySet()) {
+            EC2DiscoveryTask task = entry.getKey();
+            Future<Integer> future = entry.getValue();
+            try {
+                future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                future.cancel(true);
+                log.warn("Discovery timed out for " + task.getEc2Region() + " and AWS credential " + task.getAwsCred().getId());
+                errorList.add(EC2RegionUtil.getRegionNm(task.getEc2Region()) + ": timed out after " + DISCOVERY_TIMEOUT + " seconds");
+                failedList.add(task);
+            } catch (ExecutionException ex) {
+                log.error(ex.getCause().toString(), ex.getCause());
+                errorList.add(EC2RegionUtil.getRegionNm(task.getEc2Region()) + ": " + ex.getCause().getMessage());
+                failedList.add(task);
+            } catch (InterruptedException ex) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                errorList.add(EC2RegionUtil.getRegionNm(task.getEc2Region()) + ": discovery interrupted");
+                failedList.add(task);
+            }
+        }
+        synchronized (mergeLock) {
+            closed.set(true);
+        }
+        return failedList;
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.ec2box.common.util.AppConfig;
+import com.ec2box.manage.db.EC2KeyDB;
+import com.ec2box.manage.db.SystemDB;
+import com.ec2box.manage.model.EC2Inventory;
+import com.ec2box.manage.model.EC2InventoryChange;
+import com.ec2box.manage.model.EC2Key;
+import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.model.SortedSet;
+import com.ec2box.manage.task.EC2DiscoveryTask;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an in-memory snapshot of all EC2 instances that have keys set. A background task re-discovers
+ * instances, status checks and alarms on an interval, diffs them against the last snapshot and persists
+ * only the systems that changed, so pages are served from the snapshot instead of calling AWS.
+ */
+public class EC2InventoryUtil {
+
+    private static Logger log = LoggerFactory.getLogger(EC2InventoryUtil.class);
+
+    //seconds between inventory syncs
+    public static final int SYNC_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("awsSyncInterval")) ? Integer.parseInt(AppConfig.getProperty("awsSyncInterval")) : 60;
+
+    private static final Object syncLock = new Object();
+    private static volatile EC2Inventory inventory;
+    private static ScheduledExecutorService scheduler;
+
+    private EC2InventoryUtil() {
+    }
+
+    /**
+     * starts the background sync task
+     */
+    public static synchronized void start() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadPoolUtil.NamedThreadFactory("ec2box-inventory-sync"));
+            executor.scheduleWithFixedDelay(EC2InventoryUtil::syncQuietly, 0, SYNC_INTERVAL, TimeUnit.SECONDS);
+            scheduler = executor;
+        }
+    }
+
+    /**
+     * stops the background sync task
+     */
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * schedules a sync to run now in the background, used when credentials or keys change or on refresh
+     */
+    public static synchronized void requestRefresh() {
+        if (scheduler != null) {
+            scheduler.execute(EC2InventoryUtil::syncQuietly);
+        }
+    }
+
+    /**
+     * returns the latest inventory snapshot without calling AWS, an empty snapshot with version 0 is
+     * returned until the first background sync finishes
+     *
+     * @return inventory snapshot
+     */
+    public static EC2Inventory getInventory() {
+        EC2Inventory current = inventory;
+        if (current == null) {
+            current = new EC2Inventory(0, new HashMap<>(), new ArrayList<>(), new ArrayList<>());
+        }
+        return current;
+    }
+
+    /**
+     * checks a host system against describe instance filters
+     *
+     * @param hostSystem host system
+     * @param filterList instance state, group name and tag filters
+     * @return true if the host system matches every filter
+     */
+    public static boolean matches(HostSystem hostSystem, List<Filter> filterList) {
+        for (Filter filter : filterList) {
+            boolean match;
+            if ("instance-state-name".equals(filter.getName())) {
+                match = filter.getValues().contains(hostSystem.getState());
+            } else if ("group-name".equals(filter.getName())) {
+                match = !Collections.disjoint(filter.getValues(), hostSystem.getSecurityGroupList());
+            } else if ("tag-key".equals(filter.getName())) {
+                match = !Collections.disjoint(filter.getValues(), hostSystem.getTagMap().keySet());
+            } else if (filter.getName().startsWith("tag:")) {
+                match = isValueMatch(hostSystem.getTagMap().get(filter.getName().substring(4)), filter.getValues());
+            } else {
+                match = true;
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks tag value against filter values that may contain * and ? wildcards
+     *
+     * @param value        tag value
+     * @param filterValues filter values
+     * @return true if any filter value matches
+     */
+    private static boolean isValueMatch(String value, List<String> filterValues) {
+        if (value == null) {
+            return false;
+        }
+        for (String filterValue : filterValues) {
+            if (FilenameUtils.wildcardMatch(value, filterValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void syncQuietly() {
+        try {
+            sync();
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * discovers all instances, keeps the previous systems for regions that failed and persists systems that changed
+     *
+     * @return inventory snapshot
+     */
+    private static EC2Inventory sync() {
+        synchronized (syncLock) {
+            long startTm = System.currentTimeMillis();
+
+            Map<String, HostSystem> hostSystemMap = new HashMap<>();
+            List<String> errorList = new ArrayList<>();
+            List<EC2DiscoveryTask> failedList = EC2DiscoveryUtil.discover(new ArrayList<>(), true, hostSystemMap, errorList);
+
+            //diff the first sync against the systems table so instances removed while stopped are deleted
+            EC2Inventory previous = inventory;
+            Map<String, HostSystem> previousMap = previous != null ? previous.getHostSystemMap() : getPersistedSystemMap();
+            for (EC2DiscoveryTask task : failedList) {
+                Set<Long> keyIdSet = new HashSet<>();
+                for (EC2Key ec2Key : EC2KeyDB.getEC2KeyByRegion(task.getEc2Region(), task.getAwsCred().getId())) {
+                    keyIdSet.add(ec2Key.getId());
+                }
+                for (HostSystem hostSystem : previousMap.values()) {
+                    if (task.getEc2Region().equals(hostSystem.getEc2Region()) && keyIdSet.contains(hostSystem.getKeyId())) {
+                        hostSystemMap.putIfAbsent(hostSystem.getInstance(), hostSystem);
+                    }
+                }
+            }
+
+            List<EC2InventoryChange> changeList = getChanges(previousMap, hostSystemMap);
+
+            //persist only added and changed systems and delete removed systems
+            List<HostSystem> changedList = new ArrayList<>();
+            List<String> removedList = new ArrayList<>();
+            for (EC2InventoryChange change : changeList) {
+                if (change.getCurrent() != null) {
+                    changedList.add(change.getCurrent());
+                } else {
+                    removedList.add(change.getInstance());
+                }
+            }
+            boolean changedSaved = changedList.isEmpty() || SystemDB.setSystems(changedList);
+            boolean removedSaved = removedList.isEmpty() || SystemDB.deleteSystems(removedList);
+
+            //keep the previous entries for changes that were not written so the next sync diffs and writes them again
+            if (!changedSaved || !removedSaved) {
+                List<EC2InventoryChange> savedList = new ArrayList<>();
+                for (EC2InventoryChange change : changeList) {
+                    boolean saved = change.getCurrent() != null ? changedSaved : removedSaved;
+                    if (saved) {
+                        savedList.add(change);
+                    } else if (change.getPrevious() != null) {
+                        hostSystemMap.put(change.getInstance(), change.getPrevious());
+                    } else {
+                        hostSystemMap.remove(change.getInstance());
+                    }
+                }
+                changeList = savedList;
+            }
+
+            long version = previous == null ? 1 : (changeList.isEmpty() ? previous.getVersion() : previous.getVersion() + 1);
+            inventory = new EC2Inventory(version, hostSystemMap, errorList, changeList);
+            log.debug("Inventory version " + inventory.getVersion() + " synced " + hostSystemMap.size() + " systems, "
+                    + changeList.size() + " changed in " + (System.currentTimeMillis() - startTm) + " ms");
+            for (EC2InventoryChange change : changeList) {
+                log.debug("Inventory change " + change.getChangeType() + " " + change.getInstance());
+            }
+            return inventory;
+        }
+    }
+
+    /**
+     * returns the systems already persisted by instance id, used as the previous snapshot for the first sync
+     *
+     * @return host systems by instance id
+     */
+    private static Map<String, HostSystem> getPersistedSystemMap() {
+        Map<String, HostSystem> persistedMap = new HashMap<>();
+        for (Object item : SystemDB.getSystemSet(new SortedSet()).getItemList()) {
+            HostSystem hostSystem = (HostSystem) item;
+            persistedMap.put(hostSystem.getInstance(), hostSystem);
+        }
+        return persistedMap;
+    }
+
+    /**
+     * diffs discovered systems against the previous snapshot by instance id
+     *
+     * @param previousMap   host systems from the previous snapshot by instance id
+     * @param hostSystemMap discovered host systems by instance id
+     * @return added, changed and removed systems
+     */
+    private static List<EC2InventoryChange> getChanges(Map<String, HostSystem> previousMap, Map<String, HostSystem> hostSystemMap) {
+        List<EC2InventoryChange> changeList = new ArrayList<>();
+        for (HostSystem hostSystem : hostSystemMap.values()) {
+            HostSystem previousSystem = previousMap.get(hostSystem.getInstance());
+            if (previousSystem == null) {
+                changeList.add(new EC2InventoryChange(EC2InventoryChange.ADDED, null, hostSystem));
+            } else if (isChanged(previousSystem, hostSystem)) {
+                changeList.add(new EC2InventoryChange(EC2InventoryChange.CHANGED, previousSystem, hostSystem));
+            }
+        }
+        for (HostSystem previousSystem : previousMap.values()) {
+            if (!hostSystemMap.containsKey(previousSystem.getInstance())) {
+                changeList.add(new EC2InventoryChange(EC2InventoryChange.REMOVED, previousSystem, null));
+            }
+        }
+        return changeList;
+    }
+
+    /**
+     * checks if a host system changed since the last sync using its state, the fingerprint of its tags
+     * and network fields, and the status checks and alarm counts
+     *
+     * @param previous   host system from last sync
+     * @param hostSystem host system from this sync
+     * @return true if changed
+     */
+    private static boolean isChanged(HostSystem previous, HostSystem hostSystem) {
+        return !Objects.equals(previous.getState(), hostSystem.getState())
+                || !Objects.equals(previous.getFingerprint(), hostSystem.getFingerprint())
+                || !Objects.equals(previous.getInstanceStatus(), hostSystem.getInstanceStatus())
+                || !Objects.equals(previous.getSystemStatus(), hostSystem.getSystemStatus())
+                || !Objects.equals(previous.getMonitorAlarm(), hostSystem.getMonitorAlarm())
+                || !Objects.equals(previous.getMonitorInsufficientData(), hostSystem.getMonitorInsufficientData())
+                || !Objects.equals(previous.getMonitorOk(), hostSystem.getMonitorOk());
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.model.DescribeRegionsResult;
+import com.ec2box.common.util.AppConfig;
+import com.ec2box.manage.db.AWSCredDB;
+import com.ec2box.manage.model.AWSCred;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalog of EC2 region endpoints. Regions are loaded from AWS once, refreshed in the background on a
+ * long interval and fall back to the regions known to the SDK when AWS can not be reached.
+ */
+public class EC2RegionUtil {
+
+    private static Logger log = LoggerFactory.getLogger(EC2RegionUtil.class);
+
+    //hours between region refreshes
+    public static final int REFRESH_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("awsRegionRefreshInterval")) ? Integer.parseInt(AppConfig.getProperty("awsRegionRefreshInterval")) : 24;
+
+    private static final Object loadLock = new Object();
+    //region names by endpoint
+    private static volatile Map<String, String> regionMap;
+    private static ScheduledExecutorService scheduler;
+
+    private EC2RegionUtil() {
+    }
+
+    /**
+     * starts the background refresh task
+     */
+    public static synchronized void start() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadPoolUtil.NamedThreadFactory("ec2box-region-refresh"));
+            executor.scheduleWithFixedDelay(EC2RegionUtil::loadQuietly, 0, REFRESH_INTERVAL, TimeUnit.HOURS);
+            scheduler = executor;
+        }
+    }
+
+    /**
+     * stops the background refresh task
+     */
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * schedules a refresh to run now in the background, used when credentials change
+     */
+    public static synchronized void requestRefresh() {
+        if (scheduler != null) {
+            scheduler.execute(EC2RegionUtil::loadQuietly);
+        }
+    }
+
+    /**
+     * returns region names by endpoint, loading them on first use
+     *
+     * @return unmodifiable region map
+     */
+    public static Map<String, String> getRegionMap() {
+        if (regionMap == null) {
+            synchronized (loadLock) {
+                if (regionMap == null) {
+                    loadQuietly();
+                }
+            }
+        }
+        return regionMap;
+    }
+
+    /**
+     * returns region name for endpoint
+     *
+     * @param ec2Region EC2 region endpoint
+     * @return region name
+     */
+    public static String getRegionNm(String ec2Region) {
+        String regionNm = getRegionMap().get(ec2Region);
+        if (regionNm == null && ec2Region != null) {
+            //endpoints are in the format ec2.region-name.amazonaws.com
+            String[] parts = ec2Region.split("\\.");
+            regionNm = parts.length > 2 ? parts[1] : ec2Region;
+        }
+        return regionNm;
+    }
+
+    private static void loadQuietly() {
+        try {
+            load();
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * describes regions for every AWS credential, keeping the current regions or the SDK regions when none can be read
+     */
+    private static void load() {
+        synchronized (loadLock) {
+            Map<String, String> loadedMap = new LinkedHashMap<>();
+            for (AWSCred awsCred : AWSCredDB.getAWSCredList()) {
+                try {
+                    DescribeRegionsResult regionResponse = AWSClientUtil.getEC2Client(awsCred).describeRegions();
+                    for (com.amazonaws.services.ec2.model.Region region : regionResponse.getRegions()) {
+                        loadedMap.put(region.getEndpoint(), region.getRegionName());
+                    }
+                } catch (Exception ex) {
+                    log.error("Unable to describe regions for AWS credential " + awsCred.getId() + ": " + ex.toString());
+                }
+            }
+            if (!loadedMap.isEmpty()) {
+                regionMap = Collections.unmodifiableMap(loadedMap);
+            } else if (regionMap == null) {
+                log.warn("Unable to describe regions, using regions known to the SDK");
+                regionMap = getFallbackMap();
+            }
+        }
+    }
+
+    /**
+     * returns the regions bundled with the SDK for use when AWS can not be reached
+     *
+     * @return unmodifiable region map
+     */
+    private static Map<String, String> getFallbackMap() {
+        Map<String, String> fallbackMap = new LinkedHashMap<>();
+        for (Regions regions : Regions.values()) {
+            try {
+                String endpoint = Region.getRegion(regions).getServiceEndpoint(AWSClientUtil.EC2);
+                if (StringUtils.isNotEmpty(endpoint)) {
+                    fallbackMap.put(endpoint, regions.getName());
+                }
+            } catch (Exception ex) {
+                log.debug("No EC2 endpoint for " + regions.getName());
+            }
+        }
+        return Collections.unmodifiableMap(fallbackMap);
+    }
+}
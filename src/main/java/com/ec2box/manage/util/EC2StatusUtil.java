@@ -0,0 +1,147 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsRequest;
+import com.amazonaws.services.cloudwatch.model.DescribeAlarmsResult;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricAlarm;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
+import com.amazonaws.services.ec2.model.InstanceStatus;
+import com.ec2box.manage.model.HostSystem;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility to look up status checks and alarm counts for EC2 instances in batches
+ */
+public class EC2StatusUtil {
+
+    //AWS limits describeInstanceStatus to 100 instance ids per call
+    public static final int STATUS_BATCH_SIZE = 100;
+    //max alarms returned for each describeAlarms page
+    public static final int ALARM_PAGE_SIZE = 100;
+
+    private EC2StatusUtil() {
+    }
+
+    /**
+     * sets instance and system status checks on host systems, 100 instance ids per call
+     *
+     * @param service       EC2 client
+     * @param hostSystemMap host systems by instance id
+     */
+    public static void setStatus(AmazonEC2 service, Map<String, HostSystem> hostSystemMap) {
+
+        List<String> instanceIdList = new ArrayList<>(hostSystemMap.keySet());
+        for (int i = 0; i < instanceIdList.size(); i = i + STATUS_BATCH_SIZE) {
+
+            DescribeInstanceStatusRequest describeInstanceStatusRequest = new DescribeInstanceStatusRequest();
+            describeInstanceStatusRequest.withInstanceIds(instanceIdList.subList(i, Math.min(i + STATUS_BATCH_SIZE, instanceIdList.size())));
+            DescribeInstanceStatusResult describeInstanceStatusResult = service.describeInstanceStatus(describeInstanceStatusRequest);
+
+            for (InstanceStatus instanceStatus : describeInstanceStatusResult.getInstanceStatuses()) {
+                HostSystem hostSystem = hostSystemMap.get(instanceStatus.getInstanceId());
+                if (hostSystem != null) {
+                    hostSystem.setSystemStatus(instanceStatus.getSystemStatus().getStatus());
+                    hostSystem.setInstanceStatus(instanceStatus.getInstanceStatus().getStatus());
+                }
+            }
+        }
+    }
+
+    /**
+     * pages through all alarms for a region once and counts alarm states for each instance dimension
+     *
+     * @param cloudWatchClient CloudWatch client
+     * @return alarm counts by instance id
+     */
+    public static Map<String, AlarmCount> getAlarmIndex(AmazonCloudWatch cloudWatchClient) {
+
+        Map<String, AlarmCount> alarmIndex = new HashMap<>();
+
+        DescribeAlarmsRequest describeAlarmsRequest = new DescribeAlarmsRequest();
+        describeAlarmsRequest.setMaxRecords(ALARM_PAGE_SIZE);
+        do {
+            DescribeAlarmsResult describeAlarmsResult = cloudWatchClient.describeAlarms(describeAlarmsRequest);
+            for (MetricAlarm metricAlarm : describeAlarmsResult.getMetricAlarms()) {
+                for (Dimension dim : metricAlarm.getDimensions()) {
+                    if ("InstanceId".equals(dim.getName())) {
+                        alarmIndex.computeIfAbsent(dim.getValue(), k -> new AlarmCount()).add(metricAlarm.getStateValue());
+                    }
+                }
+            }
+            describeAlarmsRequest.setNextToken(describeAlarmsResult.getNextToken());
+        } while (StringUtils.isNotEmpty(describeAlarmsRequest.getNextToken()) && !Thread.currentThread().isInterrupted());
+
+        return alarmIndex;
+    }
+
+    /**
+     * sets alarm counts on host systems from the alarm index
+     *
+     * @param alarmIndex    alarm counts by instance id
+     * @param hostSystemMap host systems by instance id
+     */
+    public static void setAlarms(Map<String, AlarmCount> alarmIndex, Map<String, HostSystem> hostSystemMap) {
+        for (HostSystem hostSystem : hostSystemMap.values()) {
+            AlarmCount alarmCount = alarmIndex.get(hostSystem.getInstance());
+            if (alarmCount != null) {
+                hostSystem.setMonitorAlarm(alarmCount.alarm);
+                hostSystem.setMonitorInsufficientData(alarmCount.insufficientData);
+                hostSystem.setMonitorOk(alarmCount.ok);
+            }
+        }
+    }
+
+    /**
+     * alarm state counts for an instance
+     */
+    public static class AlarmCount {
+        int alarm = 0;
+        int insufficientData = 0;
+        int ok = 0;
+
+        void add(String stateValue) {
+            if ("ALARM".equals(stateValue)) {
+                alarm++;
+            } else if ("INSUFFICIENT_DATA".equals(stateValue)) {
+                insufficientData++;
+            } else {
+                ok++;
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.manage.db.SystemStatusDB;
+import com.ec2box.manage.model.HostSystem;
+import com.ec2box.manage.model.PushJob;
+import com.ec2box.manage.model.SchSession;
+import com.ec2box.manage.task.PushTask;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility to push an upload to all pending host systems of a user session in parallel and
+ * send the progress to the web socket of the session
+ */
+public class PushUtil {
+
+    private static Logger log = LoggerFactory.getLogger(PushUtil.class);
+
+    //min time in milliseconds between progress updates sent while bytes are transferred
+    private static final long PROGRESS_INTERVAL = 500;
+
+    //session id, latest push job
+    private static Map<Long, PushJob> pushJobMap = new ConcurrentHashMap<>();
+
+    private PushUtil() {
+    }
+
+    /**
+     * starts pushing the upload to all pending systems. only one push can run at a time for a session
+     *
+     * @param userId        user id
+     * @param sessionId     session id
+     * @param checksum      SHA-256 of the stored upload
+     * @param fileName      name of the file on the systems
+     * @param pushDir       destination directory
+     * @param schSessionMap open ssh sessions for the user session
+     * @return push job
+     * @throws IOException if the upload is not stored or can not be opened
+     * @throws IllegalStateException if a push is already running for the session
+     */
+    public static synchronized PushJob startPushJob(Long userId, Long sessionId, String checksum, String fileName, String pushDir, Map<Integer, SchSession> schSessionMap) throws IOException {
+
+        if (isPushRunning(sessionId)) {
+            throw new IllegalStateException("Push is already running for session " + sessionId);
+        }
+
+        //hold the upload so it is not evicted while it is pushed
+        File source = UploadStoreUtil.acquire(checksum);
+        if (source == null) {
+            throw new IOException("Upload is not stored " + checksum);
+        }
+        FileChannel sourceChannel;
+        try {
+            sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            UploadStoreUtil.release(checksum);
+            throw ex;
+        }
+
+        List<HostSystem> hostSystemList = SystemStatusDB.getPendingSystems(userId);
+
+        PushJob pushJob = new PushJob();
+        pushJob.setUserId(userId);
+        pushJob.setSessionId(sessionId);
+        pushJob.setSource(source);
+        pushJob.setFileName(fileName);
+        pushJob.setPushDir(pushDir);
+        pushJob.setFileSize(source.length());
+        pushJob.setChecksum(checksum.toLowerCase());
+        pushJob.setSourceChannel(sourceChannel);
+        pushJob.setHostSystemList(hostSystemList);
+        pushJobMap.put(sessionId, pushJob);
+
+        //find the ssh session for each system once
+        Map<Long, SchSession> hostSessionMap = new HashMap<>();
+        if (schSessionMap != null) {
+            for (SchSession schSession : schSessionMap.values()) {
+                hostSessionMap.put(schSession.getHostSystem().getId(), schSession);
+            }
+        }
+
+        if (hostSystemList.isEmpty()) {
+            finish(pushJob);
+        }
+        for (HostSystem hostSystem : hostSystemList) {
+            SchSession schSession = hostSessionMap.get(hostSystem.getId());
+            if (schSession == null) {
+                hostSystem.setErrorMsg("No open session for system");
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                complete(pushJob, hostSystem);
+            } else {
+                ThreadPoolUtil.submitPush(new PushTask(pushJob, hostSystem, schSession.getSession()));
+            }
+        }
+        sendProgress(pushJob);
+
+        return pushJob;
+    }
+
+    /**
+     * returns true if a push has been started for the session and has not finished
+     *
+     * @param sessionId session id
+     * @return true if running
+     */
+    public static boolean isPushRunning(Long sessionId) {
+        PushJob pushJob = pushJobMap.get(sessionId);
+        return pushJob != null && !pushJob.isFinished();
+    }
+
+    /**
+     * returns the latest push job for the session
+     *
+     * @param sessionId session id
+     * @return push job or null if none was started
+     */
+    public static PushJob getPushJob(Long sessionId) {
+        return pushJobMap.get(sessionId);
+    }
+
+    /**
+     * removes the push job for a closed session
+     *
+     * @param sessionId session id
+     */
+    public static void removePushJob(Long sessionId) {
+        pushJobMap.remove(sessionId);
+    }
+
+    /**
+     * sends progress if the interval has passed since the last update
+     *
+     * @param pushJob push job
+     */
+    public static void updateProgress(PushJob pushJob) {
+        if (pushJob.claimProgress(PROGRESS_INTERVAL)) {
+            sendProgress(pushJob);
+        }
+    }
+
+    /**
+     * records the result for a system and cleans up the upload once all systems have completed
+     *
+     * @param pushJob    push job
+     * @param hostSystem system with push status
+     */
+    public static void complete(PushJob pushJob, HostSystem hostSystem) {
+        SystemStatusDB.updateSystemStatus(hostSystem, pushJob.getUserId());
+        if (pushJob.complete(hostSystem.getId())) {
+            finish(pushJob);
+        }
+        sendProgress(pushJob);
+    }
+
+    /**
+     * closes the upload and releases it so it can be evicted from the store
+     *
+     * @param pushJob push job
+     */
+    private static void finish(PushJob pushJob) {
+
+        log.info("Pushed " + pushJob.getFileName() + " to " + pushJob.getHostSystemList().size() + " systems at " + pushJob.getThroughput() + " bytes/sec");
+
+        try {
+            pushJob.getSourceChannel().close();
+        } catch (IOException ex) {
+            log.error(ex.toString(), ex);
+        }
+        UploadStoreUtil.release(pushJob.getChecksum());
+    }
+
+    /**
+     * sends the progress of all systems to the web socket of the session
+     *
+     * @param pushJob push job
+     */
+    private static void sendProgress(PushJob pushJob) {
+        try {
+            SessionOutputUtil.setPushProgress(pushJob.getSessionId(), toJson(pushJob));
+        } catch (IOException ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * serializes push progress
+     *
+     * @param pushJob push job
+     * @return progress as json
+     */
+    public static String toJson(PushJob pushJob) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("fileName").value(pushJob.getFileName());
+        writer.name("fileSize").value(pushJob.getFileSize());
+        writer.name("bytesSent").value(pushJob.getBytesSent());
+        writer.name("throughput").value(pushJob.getThroughput());
+        writer.name("completed").value(pushJob.getCompleted());
+        writer.name("total").value(pushJob.getHostSystemList().size());
+        writer.name("finished").value(pushJob.isFinished());
+        writer.name("systems").beginArray();
+        for (HostSystem hostSystem : pushJob.getHostSystemList()) {
+            writer.beginObject();
+            writer.name("id").value(hostSystem.getId());
+            writer.name("completed").value(pushJob.isCompleted(hostSystem.getId()));
+            writer.name("statusCd").value(hostSystem.getStatusCd());
+            writer.name("errorMsg").value(hostSystem.getErrorMsg());
+            writer.name("bytesSent").value(pushJob.getBytesSent(hostSystem.getId()));
+            writer.name("throughput").value(pushJob.getThroughput(hostSystem.getId()));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        return out.toString();
+    }
+}
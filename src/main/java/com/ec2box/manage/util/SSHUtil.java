@@ -35,15 +35,24 @@ import com.jcraft.jsch.*;
 import com.ec2box.manage.db.EC2KeyDB;
 import com.ec2box.manage.db.SystemStatusDB;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * SSH utility class used to create public/private key for system and distribute authorized key files
  */
 public class SSHUtil {
 
+    private static Logger log = LoggerFactory.getLogger(SSHUtil.class);
+
     //system path to public/private key
     public static String KEY_PATH = DBUtils.class.getClassLoader().getResource("ec2db").getPath();
 
@@ -51,84 +60,243 @@ public class SSHUtil {
     public static final int CHANNEL_TIMEOUT = 60000;
 
 
+    public static final int PUSH_RETRIES = StringUtils.isNumeric(AppConfig.getProperty("sftpPushRetries")) ? Integer.parseInt(AppConfig.getProperty("sftpPushRetries")) : 3;
+    public static final boolean PUSH_VERIFY_CHECKSUM = !"false".equals(AppConfig.getProperty("sftpVerifyChecksum"));
+    public static final String CHECKSUM_NOT_VERIFIED = "Checksum not verified";
+    //slowest checksum rate in bytes per second allowed before verification times out
+    public static final long MIN_CHECKSUM_RATE = 10L * 1024 * 1024;
+
     public static final int SERVER_ALIVE_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("serverAliveInterval")) ? Integer.parseInt(AppConfig.getProperty("serverAliveInterval")) * 1000 : 60 * 1000;
 
     private SSHUtil() {
     }
 
     /**
-     * distributes uploaded item to system defined
+     * distributes uploaded item to system defined, resuming the transfer after a failure and verifying the result
      *
      * @param hostSystem object contains host system information
-     * @param session          an established SSH session
-     * @param source           source file
-     * @param destination      destination file
+     * @param session    an established SSH session
+     * @param pushJob    push job with the shared upload source
+     * @param monitor    progress monitor or null
      * @return status uploaded file
      */
-    public static HostSystem pushUpload(HostSystem hostSystem, Session session, String source, String destination) {
+    public static HostSystem pushUpload(HostSystem hostSystem, Session session, PushJob pushJob, SftpProgressMonitor monitor) {
 
 
         hostSystem.setStatusCd(HostSystem.SUCCESS_STATUS);
-        Channel channel = null;
-        ChannelSftp c = null;
+        hostSystem.setErrorMsg(null);
+        String destination = (pushJob.getPushDir() + "/" + pushJob.getFileName()).replaceAll("~\\/|~", "");
+
+        //set once this job has written to the destination, only then is the file on the system safe to resume
+        AtomicBoolean written = new AtomicBoolean(false);
+        SftpProgressMonitor writeMonitor = new SftpProgressMonitor() {
+            @Override
+            public void init(int op, String src, String dest, long max) {
+                if (monitor != null) {
+                    monitor.init(op, src, dest, max);
+                }
+            }
+
+            @Override
+            public boolean count(long count) {
+                if (count > 0) {
+                    written.set(true);
+                }
+                return monitor == null || monitor.count(count);
+            }
+
+            @Override
+            public void end() {
+                if (monitor != null) {
+                    monitor.end();
+                }
+            }
+        };
+
+        Exception lastEx = null;
+        for (int attempt = 0; attempt <= PUSH_RETRIES; attempt++) {
+            ChannelSftp c = null;
+            try {
+                if (attempt > 0) {
+                    log.warn("Retrying upload to " + hostSystem.getHost() + " after " + lastEx.getMessage());
+                    Thread.sleep(1000L * attempt);
+                }
+
+                c = (ChannelSftp) session.openChannel("sftp");
+                c.connect(CHANNEL_TIMEOUT);
+
+                //overwrite until this job has written to the destination, then continue from the size on the system
+                int mode = ChannelSftp.OVERWRITE;
+                long offset = 0;
+                if (written.get()) {
+                    try {
+                        offset = c.stat(destination).getSize();
+                    } catch (SftpException e) {
+                        offset = 0;
+                    }
+                    if (offset > 0 && offset <= pushJob.getFileSize()) {
+                        mode = ChannelSftp.RESUME;
+                    } else {
+                        offset = 0;
+                    }
+                }
+                //count only the bytes on the system so a retry does not count the failed attempt again
+                pushJob.setBytesSent(hostSystem.getId(), offset);
+                c.put(new FileChannelInputStream(pushJob.getSourceChannel()), destination, writeMonitor, mode);
+
+                //verify size
+                long size = c.stat(destination).getSize();
+                if (size != pushJob.getFileSize()) {
+                    throw new IOException("Size mismatch, expected " + pushJob.getFileSize() + " bytes but was " + size);
+                }
+                lastEx = null;
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lastEx = e;
+            } catch (Exception e) {
+                lastEx = e;
+            } finally {
+                if (c != null) {
+                    c.disconnect();
+                }
+            }
+            //resuming will not help if the destination can not be written
+            boolean denied = lastEx instanceof SftpException
+                    && (((SftpException) lastEx).id == ChannelSftp.SSH_FX_PERMISSION_DENIED || ((SftpException) lastEx).id == ChannelSftp.SSH_FX_NO_SUCH_FILE);
+            if (lastEx == null || denied || !session.isConnected() || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
 
         try {
+            //verify checksum when the system has sha256sum
+            if (lastEx == null) {
+                String output = PUSH_VERIFY_CHECKSUM ? execCommand(session, "sha256sum '" + destination.replace("'", "'\\''") + "'",
+                        CHANNEL_TIMEOUT + pushJob.getFileSize() * 1000 / MIN_CHECKSUM_RATE) : null;
+                if (StringUtils.isNotBlank(output)) {
+                    if (!output.trim().split("\\s+")[0].equalsIgnoreCase(pushJob.getChecksum())) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                } else {
+                    log.warn("Checksum not verified for " + destination + " on " + hostSystem.getHost());
+                    hostSystem.setErrorMsg(CHECKSUM_NOT_VERIFIED);
+                }
+            }
+        } catch (Exception e) {
+            lastEx = e;
+        }
 
+        if (lastEx != null) {
+            hostSystem.setErrorMsg(lastEx.getMessage());
+            hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+        }
 
-            channel = session.openChannel("sftp");
-            channel.setInputStream(System.in);
-            channel.setOutputStream(System.out);
-            channel.connect(CHANNEL_TIMEOUT);
+        return hostSystem;
 
-            c = (ChannelSftp) channel;
-            destination = destination.replaceAll("~\\/|~", "");
 
+    }
 
-            //get file input stream
-            FileInputStream file = new FileInputStream(source);
-            c.put(file, destination);
 
+    /**
+     * runs command on system and returns the output
+     *
+     * @param session an established SSH session
+     * @param command command to run
+     * @param timeout max time in milliseconds to wait for the command to finish
+     * @return output or null if the command failed
+     * @throws Exception on error running the command or if it does not finish in time
+     */
+    public static String execCommand(Session session, String command, long timeout) throws Exception {
 
-        } catch (Exception e) {
-            hostSystem.setErrorMsg(e.getMessage());
-            hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
-        }
-        //exit
-        if (c != null) {
-            c.exit();
-        }
-        //disconnect
-        if (channel != null) {
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        try {
+            channel.setCommand(command);
+            InputStream in = channel.getInputStream();
+            channel.connect(CHANNEL_TIMEOUT);
+
+            long deadline = System.currentTimeMillis() + timeout;
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            while (true) {
+                while (in.available() > 0) {
+                    int len = in.read(buffer);
+                    if (len < 0) {
+                        break;
+                    }
+                    output.write(buffer, 0, len);
+                }
+                if (channel.isClosed() && in.available() <= 0) {
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Command did not finish in " + timeout + " ms");
+                }
+                Thread.sleep(10);
+            }
+            return channel.getExitStatus() == 0 ? output.toString("UTF-8") : null;
+        } finally {
             channel.disconnect();
         }
+    }
 
-        return hostSystem;
 
+    /**
+     * reserves the next instance id not used by the sessions in the session map or by sessions still connecting
+     *
+     * @param sessionId      session id
+     * @param userSessionMap user session map
+     * @return instance id
+     */
+    private static synchronized int reserveInstanceId(Long sessionId, Map<Long, UserSchSessions> userSessionMap) {
+
+        UserSchSessions userSchSessions = userSessionMap.computeIfAbsent(sessionId, k -> new UserSchSessions());
+        int instanceId = 1;
+        while (userSchSessions.getSchSessionMap().containsKey(instanceId) || userSchSessions.getReservedInstanceIds().contains(instanceId)) {
+            instanceId = instanceId + 1;
+        }
+        userSchSessions.getReservedInstanceIds().add(instanceId);
+        return instanceId;
 
     }
 
 
     /**
-     * return the next instance id based on ids defined in the session map
+     * open new ssh sessions on host systems in parallel, waiting until all connections have been attempted
      *
+     * @param passphrase     key passphrase for instances
+     * @param password       password for instances
+     * @param userId         user id
      * @param sessionId      session id
+     * @param hostSystemList host systems
      * @param userSessionMap user session map
-     * @return
+     * @return status of systems
      */
-    private static int getNextInstanceId(Long sessionId, Map<Long, UserSchSessions> userSessionMap ){
+    public static List<HostSystem> openSSHTermsOnSystems(String passphrase, String password, Long userId, Long sessionId, List<HostSystem> hostSystemList, Map<Long, UserSchSessions> userSessionMap) {
 
-        Integer instanceId=1;
-        if(userSessionMap.get(sessionId)!=null){
+        List<Future<HostSystem>> futureList = new ArrayList<>();
+        for (HostSystem hostSystem : hostSystemList) {
+            futureList.add(ThreadPoolUtil.submitConnect(() -> openSSHTermOnSystem(passphrase, password, userId, sessionId, hostSystem, userSessionMap)));
+        }
 
-            for(Integer id :userSessionMap.get(sessionId).getSchSessionMap().keySet()) {
-                if (!id.equals(instanceId) && userSessionMap.get(sessionId).getSchSessionMap().get(instanceId) == null) {
-                    return instanceId;
-                }
-                instanceId = instanceId + 1;
+        List<HostSystem> statusList = new ArrayList<>();
+        for (int i = 0; i < futureList.size(); i++) {
+            try {
+                statusList.add(futureList.get(i).get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                log.error(ex.toString(), ex);
+                //the connection failed without setting a status, mark it failed so the system is not left pending
+                HostSystem hostSystem = hostSystemList.get(i);
+                hostSystem.setErrorMsg(ex.getCause().toString());
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                SystemStatusDB.updateSystemStatus(hostSystem, userId);
+                statusList.add(hostSystem);
             }
         }
-        return instanceId;
-
+        return statusList;
     }
 
 
@@ -147,7 +315,7 @@ public class SSHUtil {
 
         JSch jsch = new JSch();
 
-        int instanceId = getNextInstanceId(sessionId,userSessionMap);
+        int instanceId = reserveInstanceId(sessionId, userSessionMap);
         hostSystem.setStatusCd(HostSystem.SUCCESS_STATUS);
         hostSystem.setInstanceId(instanceId);
 
@@ -190,9 +358,7 @@ public class SSHUtil {
             SessionOutput sessionOutput = new SessionOutput(sessionId, hostSystem);
 
 
-            Runnable run = new SecureShellTask(sessionOutput, outFromChannel);
-            Thread thread = new Thread(run);
-            thread.start();
+            Future<?> readerTask = ThreadPoolUtil.submitReader(new SecureShellTask(sessionOutput, outFromChannel));
 
 
             OutputStream inputToChannel = channel.getOutputStream();
@@ -209,40 +375,35 @@ public class SSHUtil {
             schSession.setInputToChannel(inputToChannel);
             schSession.setOutFromChannel(outFromChannel);
             schSession.setHostSystem(hostSystem);
+            schSession.setReaderTask(readerTask);
 
 
 
         } catch (Exception e) {
-            hostSystem.setErrorMsg(e.getMessage());
-            if (e.getMessage().toLowerCase().contains("userauth fail")) {
+            //some exceptions have no message
+            String errorMsg = e.getMessage() != null ? e.getMessage() : e.toString();
+            hostSystem.setErrorMsg(errorMsg);
+            if (errorMsg.toLowerCase().contains("userauth fail")) {
                 hostSystem.setStatusCd(HostSystem.PUBLIC_KEY_FAIL_STATUS);
-            } else if (e.getMessage().toLowerCase().contains("auth fail") || e.getMessage().toLowerCase().contains("auth cancel")) {
+            } else if (errorMsg.toLowerCase().contains("auth fail") || errorMsg.toLowerCase().contains("auth cancel")) {
                 hostSystem.setStatusCd(HostSystem.AUTH_FAIL_STATUS);
-            } else if (e.getMessage().toLowerCase().contains("unknownhostexception")){
+            } else if (errorMsg.toLowerCase().contains("unknownhostexception")){
                 hostSystem.setErrorMsg("DNS Lookup Failed");
                 hostSystem.setStatusCd(HostSystem.HOST_FAIL_STATUS);
             } else {
                 hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
             }
-        }
-
-
-        //add session to map
-        if (hostSystem.getStatusCd().equals(HostSystem.SUCCESS_STATUS)) {
+        } finally {
             //get the server maps for user
-            UserSchSessions userSchSessions = userSessionMap.get(sessionId);
+            UserSchSessions userSchSessions = userSessionMap.computeIfAbsent(sessionId, k -> new UserSchSessions());
 
-            //if no user session create a new one
-            if (userSchSessions == null) {
-                userSchSessions = new UserSchSessions();
+            //add session to map
+            if (HostSystem.SUCCESS_STATUS.equals(hostSystem.getStatusCd()) && schSession != null) {
+                //add server information
+                userSchSessions.getSchSessionMap().put(instanceId, schSession);
             }
-            Map<Integer, SchSession> schSessionMap = userSchSessions.getSchSessionMap();
-
-            //add server information
-            schSessionMap.put(instanceId, schSession);
-            userSchSessions.setSchSessionMap(schSessionMap);
-            //add back to map
-            userSessionMap.put(sessionId, userSchSessions);
+            //release the instance id after the session is added so it is never free while in use
+            userSchSessions.getReservedInstanceIds().remove(instanceId);
         }
 
         SystemStatusDB.updateSystemStatus(hostSystem, userId);
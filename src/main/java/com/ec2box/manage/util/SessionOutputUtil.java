@@ -27,19 +27,16 @@
  */
 package com.ec2box.manage.util;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.ec2box.common.util.AppConfig;
-import com.ec2box.manage.db.SessionAuditDB;
-import com.ec2box.manage.model.AuditWrapper;
+import com.ec2box.manage.model.OutputBuffer;
 import com.ec2box.manage.model.SessionOutput;
-import com.ec2box.manage.model.User;
+import com.ec2box.manage.model.TerminalLog;
 import com.ec2box.manage.model.UserSessionsOutput;
+import com.ec2box.manage.task.SecureShellTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang3.StringUtils;
 
-import java.sql.Connection;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -52,8 +49,9 @@ public class SessionOutputUtil {
 
     private static Map<Long, UserSessionsOutput> userSessionsOutputMap = new ConcurrentHashMap<>();
     public final static boolean enableInternalAudit = "true".equals(AppConfig.getProperty("enableInternalAudit"));
-    private static Gson gson = new GsonBuilder().registerTypeAdapter(AuditWrapper.class, new SessionOutputSerializer()).create();
-    private static Logger systemAuditLogger = LoggerFactory.getLogger("com.ec2box.manage.util.SystemAudit");
+    //the buffer has to hold at least one full read from the terminal
+    public static final int OUTPUT_BUFFER_SIZE = Math.max(SecureShellTask.READ_BUFFER_SIZE, StringUtils.isNumeric(AppConfig.getProperty("terminalBufferSize")) ? Integer.parseInt(AppConfig.getProperty("terminalBufferSize")) : 131072);
+    public static final String OUTPUT_BUFFER_OVERFLOW = AppConfig.getProperty("terminalBufferOverflow", OutputBuffer.OVERFLOW_BLOCK);
 
     private SessionOutputUtil() {
     }
@@ -64,12 +62,29 @@ public class SessionOutputUtil {
      * @param sessionId session id
      */
     public static void removeUserSession(Long sessionId) {
-        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.remove(sessionId);
         if (userSessionsOutput != null) {
+            userSessionsOutput.close();
+            //release readers waiting for buffer space
+            for (SessionOutput sessionOutput : userSessionsOutput.getSessionOutputMap().values()) {
+                sessionOutput.getOutputBuffer().close();
+            }
             userSessionsOutput.getSessionOutputMap().clear();
         }
-        userSessionsOutputMap.remove(sessionId);
+        if (enableInternalAudit) {
+            TerminalLogUtil.closeSession(sessionId);
+        }
+
+    }
 
+    /**
+     * returns output for user session creating it if it does not exist
+     *
+     * @param sessionId session id
+     * @return user session output
+     */
+    public static UserSessionsOutput getUserSessionsOutput(Long sessionId) {
+        return userSessionsOutputMap.computeIfAbsent(sessionId, k -> new UserSessionsOutput());
     }
 
     /**
@@ -82,22 +97,22 @@ public class SessionOutputUtil {
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
-            userSessionsOutput.getSessionOutputMap().remove(instanceId);
+            SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().remove(instanceId);
+            if (sessionOutput != null) {
+                sessionOutput.getOutputBuffer().close();
+            }
         }
     }
 
     /**
-     * adds a new output
+     * adds a new output with a bounded output buffer
      *
      * @param sessionOutput session output object
      */
     public static void addOutput(SessionOutput sessionOutput) {
 
-        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionOutput.getSessionId());
-        if (userSessionsOutput == null) {
-            userSessionsOutputMap.put(sessionOutput.getSessionId(), new UserSessionsOutput());
-            userSessionsOutput = userSessionsOutputMap.get(sessionOutput.getSessionId());
-        }
+        UserSessionsOutput userSessionsOutput = getUserSessionsOutput(sessionOutput.getSessionId());
+        sessionOutput.setOutputBuffer(new OutputBuffer(OUTPUT_BUFFER_SIZE, OUTPUT_BUFFER_OVERFLOW, userSessionsOutput::signalOutput));
         userSessionsOutput.getSessionOutputMap().put(sessionOutput.getInstanceId(), sessionOutput);
 
 
@@ -105,32 +120,37 @@ public class SessionOutputUtil {
 
 
     /**
-     * adds a new output
+     * adds to the output for the host system and signals the web socket that output is available
      *
      * @param sessionId    session id
      * @param instanceId id of host system instance
      * @param value        Array that is the source of characters
      * @param offset       The initial offset
      * @param count        The length
+     * @throws InterruptedException if interrupted while waiting for buffer space
      */
-    public static void addToOutput(Long sessionId, Integer instanceId, char value[], int offset, int count) {
+    public static void addToOutput(Long sessionId, Integer instanceId, char value[], int offset, int count) throws InterruptedException {
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
-            userSessionsOutput.getSessionOutputMap().get(instanceId).getOutput().append(value, offset, count);
+            SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().get(instanceId);
+            if (sessionOutput != null) {
+                sessionOutput.getOutputBuffer().write(value, offset, count);
+                userSessionsOutput.signalOutput();
+            }
         }
 
     }
 
 
     /**
-     * returns list of output lines
+     * returns list of output lines. output is queued for the internal audit log if enabled
      *
      * @param sessionId session id object
-     * @param user user auth object
+     * @param systemAuditWriter writer for the system audit log or null if it is disabled
      * @return session output list
      */
-    public static List<SessionOutput> getOutput(Connection con, Long sessionId, User user) {
+    public static List<SessionOutput> getOutput(Long sessionId, SystemAuditWriter systemAuditWriter) {
         List<SessionOutput> outputList = new ArrayList<>();
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
@@ -141,19 +161,18 @@ public class SessionOutputUtil {
                 //get output chars and set to output
                 try {
                     SessionOutput sessionOutput = userSessionsOutput.getSessionOutputMap().get(key);
-                    if (sessionOutput!=null && sessionOutput.getOutput() != null
-                            && StringUtils.isNotEmpty(sessionOutput.getOutput())) {
+                    if (sessionOutput != null) {
+                        //reuse output string builder for the buffered output
+                        sessionOutput.getOutput().setLength(0);
+                        if (sessionOutput.getOutputBuffer().drainTo(sessionOutput.getOutput()) > 0) {
 
-                        outputList.add(sessionOutput);
+                            outputList.add(sessionOutput);
 
-                        //send to audit logger
-                        systemAuditLogger.info(gson.toJson(new AuditWrapper(user, sessionOutput)));
-
-                        if(enableInternalAudit) {
-                            SessionAuditDB.insertTerminalLog(con, sessionOutput);
+                            //send to audit logger
+                            if (systemAuditWriter != null) {
+                                systemAuditWriter.write(sessionOutput);
+                            }
                         }
-
-                        userSessionsOutput.getSessionOutputMap().put(key, new SessionOutput(sessionId, sessionOutput));
                     }
                 } catch (Exception ex) {
                     log.error(ex.toString(), ex);
@@ -161,6 +180,13 @@ public class SessionOutputUtil {
 
             }
 
+            //queue for the audit log writer
+            if (enableInternalAudit) {
+                for (SessionOutput sessionOutput : outputList) {
+                    TerminalLogUtil.enqueue(new TerminalLog(sessionOutput));
+                }
+            }
+
         }
 
 
@@ -168,4 +194,30 @@ public class SessionOutputUtil {
     }
 
 
+    /**
+     * sets the latest upload push progress to be sent to the web socket of the session
+     *
+     * @param sessionId session id
+     * @param progress  push progress as json
+     */
+    public static void setPushProgress(Long sessionId, String progress) {
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            userSessionsOutput.setPushProgress(progress);
+        }
+    }
+
+
+    /**
+     * returns the latest upload push progress not yet sent to the web socket
+     *
+     * @param sessionId session id
+     * @return push progress as json or null if there is none
+     */
+    public static String getPushProgress(Long sessionId) {
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        return userSessionsOutput == null ? null : userSessionsOutput.takePushProgress();
+    }
+
+
 }
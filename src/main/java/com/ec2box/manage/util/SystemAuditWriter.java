@@ -0,0 +1,129 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.manage.model.SessionOutput;
+import com.ec2box.manage.model.User;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Writes terminal output to the system audit log. The user and session fields are serialized
+ * once and written as a raw prefix of each event, the event fields are written with a streaming
+ * JSON writer into a reused buffer. Not thread safe, each web socket sender has its own instance.
+ */
+public class SystemAuditWriter {
+
+    private static Logger log = LoggerFactory.getLogger(SystemAuditWriter.class);
+    private static Logger systemAuditLogger = LoggerFactory.getLogger("com.ec2box.manage.util.SystemAudit");
+
+    //serialized user and session fields without the enclosing braces
+    private final String userFragment;
+    private final StringWriter buffer = new StringWriter();
+
+    /**
+     * @param sessionId session id
+     * @param user      session user
+     */
+    public SystemAuditWriter(Long sessionId, User user) {
+        String fragment = "";
+        try {
+            JsonWriter jsonWriter = new JsonWriter(buffer);
+            jsonWriter.beginObject();
+            writeField(jsonWriter, "user_id", user.getId());
+            writeField(jsonWriter, "username", user.getUsername());
+            writeField(jsonWriter, "user_type", user.getUserType());
+            writeField(jsonWriter, "first_nm", user.getFirstNm());
+            writeField(jsonWriter, "last_nm", user.getLastNm());
+            writeField(jsonWriter, "email", user.getEmail());
+            writeField(jsonWriter, "session_id", sessionId);
+            jsonWriter.endObject();
+            fragment = buffer.getBuffer().substring(1, buffer.getBuffer().length() - 1);
+        } catch (IOException ex) {
+            log.error(ex.toString(), ex);
+        }
+        userFragment = fragment;
+    }
+
+    /**
+     * returns true if the system audit log is enabled
+     *
+     * @return true if enabled
+     */
+    public static boolean isEnabled() {
+        return systemAuditLogger.isInfoEnabled();
+    }
+
+    /**
+     * writes terminal output to the system audit log
+     *
+     * @param sessionOutput session output
+     */
+    public void write(SessionOutput sessionOutput) {
+        buffer.getBuffer().setLength(0);
+        try {
+            JsonWriter jsonWriter = new JsonWriter(buffer);
+            jsonWriter.beginObject();
+            //the writer writes straight to the buffer so the prefix lands right after the opening brace
+            if (!userFragment.isEmpty()) {
+                buffer.append(userFragment).append(',');
+            }
+            writeField(jsonWriter, "instance_id", sessionOutput.getInstanceId());
+            writeField(jsonWriter, "host_id", sessionOutput.getId());
+            writeField(jsonWriter, "host", sessionOutput.getDisplayLabel());
+            writeField(jsonWriter, "output", sessionOutput.getOutput());
+            writeField(jsonWriter, "timestamp", System.currentTimeMillis());
+            jsonWriter.endObject();
+            systemAuditLogger.info(buffer.toString());
+        } catch (IOException ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * writes name and value, null values are skipped
+     *
+     * @param jsonWriter json writer
+     * @param name       field name
+     * @param value      field value
+     */
+    private static void writeField(JsonWriter jsonWriter, String name, Object value) throws IOException {
+        if (value != null) {
+            jsonWriter.name(name);
+            if (value instanceof Number) {
+                jsonWriter.value((Number) value);
+            } else {
+                jsonWriter.value(value.toString());
+            }
+        }
+    }
+}
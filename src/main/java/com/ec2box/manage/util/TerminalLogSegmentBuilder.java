@@ -0,0 +1,123 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.manage.model.TerminalLog;
+import com.ec2box.manage.model.TerminalLogSegment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds a compressed segment of terminal output. Each log record is written as
+ * log time (long), payload length (int) and UTF-8 payload before being deflated.
+ */
+public class TerminalLogSegmentBuilder {
+
+    private final TerminalLogSegment segment = new TerminalLogSegment();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final Deflater deflater = new Deflater();
+    private final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 8192));
+    private final long createdTm = System.currentTimeMillis();
+    private int outputLength = 0;
+    private int recordCount = 0;
+
+    /**
+     * @param first       first log record in the segment
+     * @param segmentNo   order of the segment for the terminal
+     * @param startOffset number of chars output by the terminal before this segment
+     */
+    public TerminalLogSegmentBuilder(TerminalLog first, int segmentNo, long startOffset) {
+        segment.setSessionId(first.getSessionId());
+        segment.setInstanceId(first.getInstanceId());
+        segment.setSegmentNo(segmentNo);
+        segment.setStartOffset(startOffset);
+        segment.setStartTm(first.getLogTm());
+        segment.setDisplayNm(first.getDisplayNm());
+        segment.setUser(first.getUser());
+        segment.setHost(first.getHost());
+        segment.setPort(first.getPort());
+    }
+
+    /**
+     * appends log record to the segment
+     *
+     * @param terminalLog log record
+     * @throws IOException on compression error
+     */
+    public void append(TerminalLog terminalLog) throws IOException {
+        byte[] payload = terminalLog.getOutput().getBytes(StandardCharsets.UTF_8);
+        out.writeLong(terminalLog.getLogTm().getTime());
+        out.writeInt(payload.length);
+        out.write(payload);
+        outputLength = outputLength + terminalLog.getOutput().length();
+        recordCount++;
+        segment.setEndTm(terminalLog.getLogTm());
+    }
+
+    /**
+     * finishes compression and returns the segment
+     *
+     * @return terminal log segment
+     * @throws IOException on compression error
+     */
+    public TerminalLogSegment build() throws IOException {
+        try {
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        segment.setOutputLength(outputLength);
+        segment.setOutput(bytes.toByteArray());
+        return segment;
+    }
+
+    public Long getSessionId() {
+        return segment.getSessionId();
+    }
+
+    public Integer getInstanceId() {
+        return segment.getInstanceId();
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getCreatedTm() {
+        return createdTm;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.manage.model.TerminalLog;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads log records from a compressed segment of terminal output in the order they were written
+ */
+public class TerminalLogSegmentReader implements Closeable {
+
+    private final DataInputStream in;
+
+    /**
+     * @param output compressed segment output
+     */
+    public TerminalLogSegmentReader(InputStream output) {
+        this.in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(output)));
+    }
+
+    /**
+     * returns the next log record
+     *
+     * @return log record with output and log time or null if there are no more records
+     * @throws IOException on decompression error
+     */
+    public TerminalLog next() throws IOException {
+        long logTm;
+        try {
+            logTm = in.readLong();
+        } catch (EOFException ex) {
+            return null;
+        }
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+
+        TerminalLog terminalLog = new TerminalLog();
+        terminalLog.setLogTm(new Timestamp(logTm));
+        terminalLog.setOutput(new String(payload, StandardCharsets.UTF_8));
+        return terminalLog;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
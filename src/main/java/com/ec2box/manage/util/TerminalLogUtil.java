@@ -0,0 +1,193 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.common.util.AppConfig;
+import com.ec2box.manage.model.TerminalLog;
+import com.ec2box.manage.task.TerminalLogWriterTask;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility to queue terminal output for the internal audit log so it is written off the web socket send path.
+ * Queued output is grouped into compressed segments per terminal before it is written.
+ */
+public class TerminalLogUtil {
+
+    private static Logger log = LoggerFactory.getLogger(TerminalLogUtil.class);
+
+    //queue and batch must hold at least one terminal output
+    public static final int QUEUE_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditQueueSize")) ? Math.max(1, Integer.parseInt(AppConfig.getProperty("auditQueueSize"))) : 10000;
+    public static final int BATCH_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditBatchSize")) ? Math.max(1, Integer.parseInt(AppConfig.getProperty("auditBatchSize"))) : 500;
+    public static final long FLUSH_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("auditFlushInterval")) ? Long.parseLong(AppConfig.getProperty("auditFlushInterval")) : 1000L;
+    public static final int SEGMENT_SIZE = StringUtils.isNumeric(AppConfig.getProperty("auditSegmentSize")) ? Integer.parseInt(AppConfig.getProperty("auditSegmentSize")) : 65536;
+    public static final long SEGMENT_INTERVAL = StringUtils.isNumeric(AppConfig.getProperty("auditSegmentInterval")) ? Long.parseLong(AppConfig.getProperty("auditSegmentInterval")) : 30000L;
+    public static final long QUEUE_TIMEOUT = StringUtils.isNumeric(AppConfig.getProperty("auditQueueTimeout")) ? Long.parseLong(AppConfig.getProperty("auditQueueTimeout")) : 100L;
+
+    private static BlockingQueue<TerminalLog> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    //sessions closed while the queue was full, checked by the writer on every pass
+    private static Set<Long> closedSessionSet = ConcurrentHashMap.newKeySet();
+    private static volatile boolean running = false;
+    private static Thread writer;
+
+    private static AtomicLong queued = new AtomicLong(0);
+    private static AtomicLong written = new AtomicLong(0);
+    private static AtomicLong dropped = new AtomicLong(0);
+    private static AtomicLong failed = new AtomicLong(0);
+
+    private TerminalLogUtil() {
+    }
+
+    /**
+     * starts the audit log writer
+     */
+    public static synchronized void start() {
+        if (!running) {
+            running = true;
+            writer = new ThreadPoolUtil.NamedThreadFactory("ec2box-audit-writer").newThread(new TerminalLogWriterTask(queue, closedSessionSet, BATCH_SIZE, FLUSH_INTERVAL, SEGMENT_SIZE, SEGMENT_INTERVAL));
+            writer.start();
+        }
+    }
+
+    /**
+     * stops the audit log writer once queued output has been written
+     */
+    public static synchronized void shutdown() {
+        if (running) {
+            //writer is not interrupted since it may be in the middle of a DB write
+            running = false;
+            try {
+                writer.join(FLUSH_INTERVAL + 30000L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (!queue.isEmpty()) {
+                log.warn("Audit log writer stopped with " + queue.size() + " terminal logs not written");
+            }
+        }
+    }
+
+    /**
+     * queues terminal output to be written. waits for space when the queue is full and drops the output if none frees up
+     *
+     * @param terminalLog terminal output
+     */
+    public static void enqueue(TerminalLog terminalLog) {
+        boolean added = false;
+        try {
+            added = running && queue.offer(terminalLog, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (added) {
+            queued.incrementAndGet();
+        } else if (dropped.incrementAndGet() % 1000 == 1) {
+            log.warn("Audit log queue is full, " + dropped.get() + " terminal logs have been dropped");
+        }
+    }
+
+    /**
+     * queues a marker so the output for a closed session is written without waiting for the segment interval.
+     * if the queue stays full the session is handed to the writer directly so the caller is never blocked
+     *
+     * @param sessionId session id
+     */
+    public static void closeSession(Long sessionId) {
+        if (running) {
+            TerminalLog marker = new TerminalLog();
+            marker.setSessionId(sessionId);
+            boolean added = false;
+            try {
+                added = queue.offer(marker, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (!added) {
+                closedSessionSet.add(sessionId);
+            }
+        }
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public static void addWritten(int count) {
+        written.addAndGet(count);
+    }
+
+    public static void addFailed(int count) {
+        failed.addAndGet(count);
+    }
+
+    public static long getQueuedCount() {
+        return queued.get();
+    }
+
+    public static long getWrittenCount() {
+        return written.get();
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    public static int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * returns queued, written, dropped and failed counts and the current queue size
+     *
+     * @return counts by name
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> statsMap = new LinkedHashMap<>();
+        statsMap.put("queued", getQueuedCount());
+        statsMap.put("written", getWrittenCount());
+        statsMap.put("dropped", getDroppedCount());
+        statsMap.put("failed", getFailedCount());
+        statsMap.put("queueSize", (long) getQueueSize());
+        statsMap.put("queueCapacity", (long) QUEUE_SIZE);
+        return statsMap;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+/**
+ * Removes terminal control sequences from recorded output in a single pass so it can be displayed as text.
+ * Escape sequences may span calls to {@link #clean(String)}. When line buffered, the current line is held back
+ * so a later backspace can still remove its chars, otherwise output is returned as it arrives and backspaces
+ * are left for the display to apply. {@link #getLineBoundary()} and {@link #getTextBoundary()} give input positions
+ * a new cleaner can resume from, so paged output can be split where no partial line or escape sequence is pending.
+ */
+public class TerminalOutputCleaner {
+
+    private static final char ESC = '\u001B';
+    private static final char BEL = '\u0007';
+
+    private static final int TEXT = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+    private static final int OSC_ESCAPE = 4;
+    private static final int CHARSET = 5;
+
+    private int state = TEXT;
+    private final StringBuilder line = new StringBuilder();
+    private final boolean lineBuffered;
+    //number of chars consumed, up to the last completed line and up to the last char outside an escape sequence
+    private long consumed = 0;
+    private long lineBoundary = 0;
+    private long textBoundary = 0;
+
+    public TerminalOutputCleaner() {
+        this(true);
+    }
+
+    /**
+     * @param lineBuffered true to return only completed lines with backspaces applied
+     */
+    public TerminalOutputCleaner(boolean lineBuffered) {
+        this.lineBuffered = lineBuffered;
+    }
+
+    /**
+     * cleans output and returns the completed lines
+     *
+     * @param output raw terminal output
+     * @return cleaned output, only completed lines when line buffered
+     */
+    public String clean(String output) {
+        StringBuilder cleaned = new StringBuilder();
+        for (int i = 0; i < output.length(); i++) {
+            char c = output.charAt(i);
+            switch (state) {
+                case ESCAPE:
+                    if (c == '[') {
+                        state = CSI;
+                    } else if (c == ']') {
+                        state = OSC;
+                    } else if (c == '(' || c == ')') {
+                        state = CHARSET;
+                    } else {
+                        state = TEXT;
+                    }
+                    break;
+                case CSI:
+                    //parameter and intermediate bytes until the final byte
+                    if (c >= '@' && c <= '~') {
+                        state = TEXT;
+                    }
+                    break;
+                case OSC:
+                    if (c == BEL) {
+                        state = TEXT;
+                    } else if (c == ESC) {
+                        state = OSC_ESCAPE;
+                    }
+                    break;
+                case OSC_ESCAPE:
+                    state = c == '\\' ? TEXT : OSC;
+                    break;
+                case CHARSET:
+                    state = TEXT;
+                    break;
+                default:
+                    if (c == ESC) {
+                        state = ESCAPE;
+                    } else if (!lineBuffered) {
+                        if (c != BEL) {
+                            cleaned.append(c);
+                        }
+                    } else if (c == '\b') {
+                        if (line.length() > 0) {
+                            line.setLength(line.length() - 1);
+                        }
+                    } else if (c != BEL) {
+                        line.append(c);
+                        if (c == '\n') {
+                            cleaned.append(line);
+                            line.setLength(0);
+                        }
+                    }
+            }
+            consumed++;
+            if (state == TEXT) {
+                textBoundary = consumed;
+                if (!lineBuffered || line.length() == 0) {
+                    lineBoundary = consumed;
+                }
+            }
+        }
+        return cleaned.toString();
+    }
+
+    /**
+     * returns the rest of the current line
+     *
+     * @return cleaned output not yet returned
+     */
+    public String flush() {
+        String rest = line.toString();
+        line.setLength(0);
+        lineBoundary = textBoundary;
+        return rest;
+    }
+
+    /**
+     * returns the number of chars consumed up to the last point where all output had been returned
+     * and no escape sequence was open
+     *
+     * @return chars of input a new cleaner can resume after without losing output
+     */
+    public long getLineBoundary() {
+        return lineBoundary;
+    }
+
+    /**
+     * returns the number of chars consumed up to the last point where no escape sequence was open.
+     * output held back for the current line covers exactly this input, so resuming here after {@link #flush()}
+     * only loses backspaces that would have removed flushed chars
+     *
+     * @return chars of input a new cleaner can resume after
+     */
+    public long getTextBoundary() {
+        return textBoundary;
+    }
+}
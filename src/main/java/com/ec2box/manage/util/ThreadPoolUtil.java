@@ -0,0 +1,226 @@
+/**
+ *    Copyright (C) 2013 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.common.util.AppConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility that holds the shared thread pools used to open ssh sessions, push uploads, discover EC2 instances, read from ssh channels and send output to web sockets
+ */
+public class ThreadPoolUtil {
+
+    private static Logger log = LoggerFactory.getLogger(ThreadPoolUtil.class);
+
+    public static final int CONNECT_THREADS = StringUtils.isNumeric(AppConfig.getProperty("sshConnectConcurrency")) ? Integer.parseInt(AppConfig.getProperty("sshConnectConcurrency")) : 10;
+    public static final int PUSH_THREADS = StringUtils.isNumeric(AppConfig.getProperty("sftpPushConcurrency")) ? Integer.parseInt(AppConfig.getProperty("sftpPushConcurrency")) : 10;
+    public static final int DISCOVERY_THREADS = StringUtils.isNumeric(AppConfig.getProperty("awsDiscoveryConcurrency")) ? Integer.parseInt(AppConfig.getProperty("awsDiscoveryConcurrency")) : 10;
+    public static final int SENDER_THREADS = StringUtils.isNumeric(AppConfig.getProperty("terminalSenderThreads")) ? Integer.parseInt(AppConfig.getProperty("terminalSenderThreads")) : Runtime.getRuntime().availableProcessors() * 2;
+
+    //channel reads block so each open terminal holds a reader thread while it is connected
+    private static ThreadPoolExecutor readerPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), new NamedThreadFactory("ec2box-term-reader"));
+    //bounded pool shared by all web sockets to send output
+    private static ThreadPoolExecutor senderPool = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("ec2box-term-sender"));
+
+    //bounded pool to open ssh sessions on many systems at once
+    private static ThreadPoolExecutor connectPool = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("ec2box-ssh-connect"));
+    //bounded pool to push uploads to many systems at once
+    private static ThreadPoolExecutor pushPool = new ThreadPoolExecutor(PUSH_THREADS, PUSH_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("ec2box-sftp-push"));
+
+    //bounded pool to call AWS for many credentials and regions at once
+    private static ThreadPoolExecutor discoveryPool = new ThreadPoolExecutor(DISCOVERY_THREADS, DISCOVERY_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("ec2box-aws-discovery"));
+
+    private static AtomicInteger activeReaders = new AtomicInteger(0);
+
+    static {
+        senderPool.allowCoreThreadTimeOut(true);
+        connectPool.allowCoreThreadTimeOut(true);
+        pushPool.allowCoreThreadTimeOut(true);
+        discoveryPool.allowCoreThreadTimeOut(true);
+    }
+
+    private ThreadPoolUtil() {
+    }
+
+    /**
+     * submits a task to open a ssh session
+     *
+     * @param task connect task
+     * @return future with the result of the connection
+     */
+    public static <T> Future<T> submitConnect(Callable<T> task) {
+        return connectPool.submit(task);
+    }
+
+    /**
+     * submits a task to push an upload to a system
+     *
+     * @param task push task
+     */
+    public static void submitPush(Runnable task) {
+        pushPool.execute(task);
+    }
+
+    /**
+     * submits a task to describe instances for an AWS credential and region
+     *
+     * @param task discovery task
+     * @return future with the discovered systems
+     */
+    public static <T> Future<T> submitDiscovery(Callable<T> task) {
+        return discoveryPool.submit(task);
+    }
+
+    /**
+     * submits a task to read from a ssh channel
+     *
+     * @param task reader task
+     * @return future used to cancel the reader when the session is disconnected
+     */
+    public static Future<?> submitReader(Runnable task) {
+        return readerPool.submit(() -> {
+            log.debug("Terminal reader started, active readers: " + activeReaders.incrementAndGet());
+            try {
+                task.run();
+            } finally {
+                log.debug("Terminal reader stopped, active readers: " + activeReaders.decrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * submits a task to send output to a web socket
+     *
+     * @param task sender task
+     */
+    public static void submitSender(Runnable task) {
+        senderPool.execute(task);
+    }
+
+    /**
+     * returns the number of terminal readers holding a thread
+     *
+     * @return active readers
+     */
+    public static int getActiveReaderCount() {
+        return activeReaders.get();
+    }
+
+    /**
+     * returns the number of sender threads sending output to web sockets
+     *
+     * @return active senders
+     */
+    public static int getActiveSenderCount() {
+        return senderPool.getActiveCount();
+    }
+
+    /**
+     * returns the number of sender tasks waiting for a thread
+     *
+     * @return queued senders
+     */
+    public static int getQueuedSenderCount() {
+        return senderPool.getQueue().size();
+    }
+
+    /**
+     * returns terminal reader and sender counts
+     *
+     * @return counts by name
+     */
+    public static Map<String, Integer> getTerminalStats() {
+        Map<String, Integer> statsMap = new LinkedHashMap<>();
+        statsMap.put("activeReaders", getActiveReaderCount());
+        statsMap.put("activeSenders", getActiveSenderCount());
+        statsMap.put("queuedSenders", getQueuedSenderCount());
+        statsMap.put("senderThreads", SENDER_THREADS);
+        return statsMap;
+    }
+
+    /**
+     * stops all thread pools
+     */
+    public static void shutdown() {
+        shutdown(connectPool);
+        shutdown(pushPool);
+        shutdown(discoveryPool);
+        shutdown(readerPool);
+        shutdown(senderPool);
+    }
+
+    /**
+     * stops thread pool waiting for running tasks to finish
+     *
+     * @param pool thread pool
+     */
+    private static void shutdown(ExecutorService pool) {
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Thread pool did not terminate");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * creates named daemon threads
+     */
+    public static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
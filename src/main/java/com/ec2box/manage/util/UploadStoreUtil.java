@@ -0,0 +1,228 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.util;
+
+import com.ec2box.common.util.AppConfig;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staging store for uploads named by the SHA-256 of their content, so an artifact pushed again does not need
+ * to be uploaded again. Files used by a running push are reference counted and a background task evicts
+ * files that are not in use once they are too old or the store is too large.
+ */
+public class UploadStoreUtil {
+
+    private static Logger log = LoggerFactory.getLogger(UploadStoreUtil.class);
+
+    public static final String STORE_PATH = DBUtils.class.getClassLoader().getResource(".").getPath() + "../upload";
+    //max size in MB of all files in the store
+    public static final long STORE_MAX_SIZE = StringUtils.isNumeric(AppConfig.getProperty("uploadStoreMaxSize")) ? Long.parseLong(AppConfig.getProperty("uploadStoreMaxSize")) : 10240;
+    //max time in hours a file is kept after it was last used
+    public static final long STORE_MAX_AGE = StringUtils.isNumeric(AppConfig.getProperty("uploadStoreMaxAge")) ? Long.parseLong(AppConfig.getProperty("uploadStoreMaxAge")) : 48;
+    //time in minutes between eviction runs
+    private static final long EVICT_INTERVAL = 10;
+
+    private static final String PART_SUFFIX = ".part";
+
+    //checksum, number of pushes using the file
+    private static final Map<String, Integer> refCountMap = new HashMap<>();
+
+    private static ScheduledExecutorService evictor;
+
+    private UploadStoreUtil() {
+    }
+
+    /**
+     * starts the background eviction task
+     */
+    public static synchronized void start() {
+        if (evictor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadPoolUtil.NamedThreadFactory("ec2box-upload-evictor"));
+            executor.scheduleWithFixedDelay(UploadStoreUtil::evict, EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.MINUTES);
+            evictor = executor;
+        }
+    }
+
+    /**
+     * stops the background eviction task
+     */
+    public static synchronized void shutdown() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+    }
+
+    /**
+     * writes the upload to the store calculating the checksum as it is read
+     *
+     * @param in upload stream
+     * @return SHA-256 of the upload as hex
+     * @throws IOException on error writing the upload
+     */
+    public static String store(InputStream in) throws IOException {
+
+        File path = new File(STORE_PATH);
+        if (!path.exists()) {
+            path.mkdirs();
+        }
+        //written to a temp name and renamed once complete so a partial file is never pushed
+        File part = File.createTempFile("upload", PART_SUFFIX, path);
+        try {
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            Files.copy(new DigestInputStream(in, digest), part.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            String checksum = Hex.encodeHexString(digest.digest());
+
+            synchronized (refCountMap) {
+                File file = new File(STORE_PATH, checksum);
+                if (file.exists()) {
+                    //same content is already stored
+                    file.setLastModified(System.currentTimeMillis());
+                } else {
+                    Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            return checksum;
+        } finally {
+            FileUtils.deleteQuietly(part);
+        }
+    }
+
+    /**
+     * checks if an upload with the checksum is stored
+     *
+     * @param checksum SHA-256 as hex
+     * @return true if stored
+     */
+    public static boolean contains(String checksum) {
+        return isChecksum(checksum) && new File(STORE_PATH, checksum.toLowerCase()).isFile();
+    }
+
+    /**
+     * returns the stored upload and holds it until released
+     *
+     * @param checksum SHA-256 as hex
+     * @return stored upload or null if not stored
+     */
+    public static File acquire(String checksum) {
+        if (!isChecksum(checksum)) {
+            return null;
+        }
+        checksum = checksum.toLowerCase();
+        synchronized (refCountMap) {
+            File file = new File(STORE_PATH, checksum);
+            if (!file.isFile()) {
+                return null;
+            }
+            refCountMap.merge(checksum, 1, Integer::sum);
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+    }
+
+    /**
+     * releases an upload held for a push
+     *
+     * @param checksum SHA-256 as hex
+     */
+    public static void release(String checksum) {
+        synchronized (refCountMap) {
+            refCountMap.computeIfPresent(checksum.toLowerCase(), (k, count) -> count > 1 ? count - 1 : null);
+            new File(STORE_PATH, checksum.toLowerCase()).setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * deletes files not in use that are older than the max age, then the least recently used files until the
+     * store is under the max size
+     */
+    public static void evict() {
+        try {
+            File[] files = new File(STORE_PATH).listFiles(File::isFile);
+            if (files == null) {
+                return;
+            }
+            long expireTm = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(STORE_MAX_AGE);
+            long maxSize = STORE_MAX_SIZE * 1024 * 1024;
+            long size = 0;
+            for (File file : files) {
+                size = size + file.length();
+            }
+
+            //oldest first
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.lastModified() >= expireTm && size <= maxSize) {
+                    break;
+                }
+                long length = file.length();
+                synchronized (refCountMap) {
+                    //uploads still being written are only removed once expired
+                    boolean inUse = refCountMap.containsKey(file.getName())
+                            || (file.getName().endsWith(PART_SUFFIX) && file.lastModified() >= expireTm);
+                    if (!inUse && file.delete()) {
+                        size = size - length;
+                        log.debug("Evicted upload " + file.getName());
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    /**
+     * checks the value is a SHA-256 as hex so it is safe to use as a file name
+     *
+     * @param checksum value to check
+     * @return true if valid
+     */
+    private static boolean isChecksum(String checksum) {
+        return checksum != null && checksum.matches("[0-9a-fA-F]{64}");
+    }
+}
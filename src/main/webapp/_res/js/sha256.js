@@ -0,0 +1,148 @@
+/**
+ *    Copyright (C) 2013 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+
+/**
+ * Incremental SHA-256 so large files can be hashed a slice at a time without holding them in memory
+ */
+function Sha256() {
+    this.h = new Int32Array([0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19]);
+    this.w = new Int32Array(64);
+    this.block = new Uint8Array(64);
+    this.blockLength = 0;
+    this.length = 0;
+}
+
+Sha256.K = new Int32Array([
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2]);
+
+Sha256.prototype.compress = function (data, offset) {
+    var w = this.w, h = this.h, k = Sha256.K, i, t1, t2;
+    for (i = 0; i < 16; i++) {
+        var j = offset + i * 4;
+        w[i] = (data[j] << 24) | (data[j + 1] << 16) | (data[j + 2] << 8) | data[j + 3];
+    }
+    for (i = 16; i < 64; i++) {
+        var w15 = w[i - 15], w2 = w[i - 2];
+        var s0 = ((w15 >>> 7) | (w15 << 25)) ^ ((w15 >>> 18) | (w15 << 14)) ^ (w15 >>> 3);
+        var s1 = ((w2 >>> 17) | (w2 << 15)) ^ ((w2 >>> 19) | (w2 << 13)) ^ (w2 >>> 10);
+        w[i] = (w[i - 16] + s0 + w[i - 7] + s1) | 0;
+    }
+    var a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+    for (i = 0; i < 64; i++) {
+        t1 = (hh + (((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7)))
+            + ((e & f) ^ (~e & g)) + k[i] + w[i]) | 0;
+        t2 = ((((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10)))
+            + ((a & b) ^ (a & c) ^ (b & c))) | 0;
+        hh = g;
+        g = f;
+        f = e;
+        e = (d + t1) | 0;
+        d = c;
+        c = b;
+        b = a;
+        a = (t1 + t2) | 0;
+    }
+    h[0] += a;
+    h[1] += b;
+    h[2] += c;
+    h[3] += d;
+    h[4] += e;
+    h[5] += f;
+    h[6] += g;
+    h[7] += hh;
+};
+
+//adds bytes to the hash
+Sha256.prototype.update = function (data) {
+    var offset = 0;
+    this.length += data.length;
+    if (this.blockLength > 0) {
+        var fill = Math.min(64 - this.blockLength, data.length);
+        this.block.set(data.subarray(0, fill), this.blockLength);
+        this.blockLength += fill;
+        offset = fill;
+        if (this.blockLength < 64) {
+            return this;
+        }
+        this.compress(this.block, 0);
+        this.blockLength = 0;
+    }
+    for (; offset + 64 <= data.length; offset += 64) {
+        this.compress(data, offset);
+    }
+    this.block.set(data.subarray(offset), 0);
+    this.blockLength = data.length - offset;
+    return this;
+};
+
+//returns the hash as hex
+Sha256.prototype.hex = function () {
+    var bits = this.length * 8;
+    var padLength = this.blockLength < 56 ? 56 - this.blockLength : 120 - this.blockLength;
+    var pad = new Uint8Array(padLength + 8);
+    pad[0] = 0x80;
+    var high = Math.floor(bits / 0x100000000), low = bits >>> 0;
+    for (var i = 0; i < 4; i++) {
+        pad[padLength + i] = (high >>> (24 - i * 8)) & 0xff;
+        pad[padLength + 4 + i] = (low >>> (24 - i * 8)) & 0xff;
+    }
+    this.update(pad);
+    var out = '';
+    for (var j = 0; j < 8; j++) {
+        out += ('00000000' + (this.h[j] >>> 0).toString(16)).slice(-8);
+    }
+    return out;
+};
+
+//hashes a file a slice at a time and calls back with the hex hash or null if the file could not be read
+function sha256File(file, callback) {
+    var sha256 = new Sha256();
+    var sliceSize = 4 * 1024 * 1024;
+    var offset = 0;
+    var reader = new FileReader();
+    reader.onload = function () {
+        sha256.update(new Uint8Array(reader.result));
+        offset += sliceSize;
+        if (offset < file.size) {
+            reader.readAsArrayBuffer(file.slice(offset, offset + sliceSize));
+        } else {
+            callback(sha256.hex());
+        }
+    };
+    reader.onerror = function () {
+        callback(null);
+    };
+    reader.readAsArrayBuffer(file.slice(0, sliceSize));
+}
@@ -0,0 +1,142 @@
+/**
+ *    Copyright (C) 2018 Loophole, LLC
+ *
+ *    This program is free software: you can redistribute it and/or  modify
+ *    it under the terms of the GNU Affero General Public License, version 3,
+ *    as published by the Free Software Foundation.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Affero General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Affero General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *    As a special exception, the copyright holders give permission to link the
+ *    code of portions of this program with the OpenSSL library under certain
+ *    conditions as described in each individual source file and distribute
+ *    linked combinations including the program with the OpenSSL library. You
+ *    must comply with the GNU Affero General Public License in all respects for
+ *    all of the code used other than as permitted herein. If you modify file(s)
+ *    with this exception, you may extend this exception to your version of the
+ *    file(s), but you are not obligated to do so. If you do not wish to do so,
+ *    delete this exception statement from your version. If you delete this
+ *    exception statement from all source files in the program, then also delete
+ *    it in the license file.
+ */
+package com.ec2box.manage.db;
+
+import com.ec2box.common.db.DBMigrationUtil;
+import com.ec2box.manage.model.HostSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the hot queries of each DB class use the indexes created by the schema migrations
+ */
+public class DBQueryPlanTest {
+
+    Connection con;
+
+    @Before
+    public void migrate() throws Exception {
+        con = DriverManager.getConnection("jdbc:h2:mem:ec2box-plan;DB_CLOSE_DELAY=-1", "sa", "");
+        Statement statement = con.createStatement();
+        DBMigrationUtil.createTables(statement);
+        statement.close();
+        DBMigrationUtil.migrate(con);
+    }
+
+    @After
+    public void close() throws Exception {
+        Statement statement = con.createStatement();
+        statement.execute("drop all objects");
+        statement.close();
+        con.close();
+    }
+
+    @Test
+    public void systemStatusDB() throws Exception {
+        assertIndex(explain(SystemStatusDB.SELECT_PENDING_BY_USER_SQL,
+                HostSystem.INITIAL_STATUS, HostSystem.AUTH_FAIL_STATUS, HostSystem.PUBLIC_KEY_FAIL_STATUS, 1L), "STATUS_USER_STATUS_IDX");
+        assertIndex(explain(SystemStatusDB.SELECT_BY_USER_SQL, 1L));
+    }
+
+    @Test
+    public void ec2KeyDB() throws Exception {
+        assertIndex(explain(EC2KeyDB.SELECT_BY_REGION_SQL, "us-east-1", 1L), "EC2_KEYS_REGION_CRED_IDX");
+    }
+
+    @Test
+    public void systemDB() throws Exception {
+        assertIndex(explain(SystemDB.SELECT_BY_INSTANCE_ID_SQL, "i-1"), "SYSTEM_INSTANCE_ID_IDX");
+        assertIndex(explain(SystemDB.SELECT_BY_INSTANCE_ID_LIST_SQL, (Object) new Object[]{"i-1", "i-2"}), "SYSTEM_INSTANCE_ID_IDX");
+    }
+
+    @Test
+    public void sessionAuditDB() throws Exception {
+        Timestamp tm = new Timestamp(System.currentTimeMillis());
+        assertIndex(explain(SessionAuditDB.DELETE_BEFORE_TM_SQL, tm), "SESSION_LOG_TM_USER_IDX");
+    }
+
+    @Test
+    public void terminalLogSegments() throws Exception {
+        Timestamp tm = new Timestamp(System.currentTimeMillis());
+        assertIndex(explain(SessionAuditDB.SELECT_LAST_SEGMENT_SQL, 1L, 1),
+                "TERMINAL_LOG_SEGMENT_NO_IDX", "TERMINAL_LOG_SEGMENT_TM_IDX");
+        assertIndex(explain(SessionAuditDB.SELECT_SEGMENT_OFFSET_SQL, 1L, 1, tm),
+                "TERMINAL_LOG_SEGMENT_NO_IDX", "TERMINAL_LOG_SEGMENT_TM_IDX");
+        assertIndex(explain(SessionAuditDB.SELECT_SEGMENTS_SQL + " order by segment_no asc", 1L, 1, 0L, tm),
+                "TERMINAL_LOG_SEGMENT_NO_IDX", "TERMINAL_LOG_SEGMENT_TM_IDX");
+    }
+
+    /**
+     * returns the H2 plan for a query with its parameters bound, since like conditions are only
+     * turned into index lookups for the bound values
+     *
+     * @param sql    query
+     * @param params query parameters
+     * @return plan
+     */
+    private String explain(String sql, Object... params) throws Exception {
+        PreparedStatement stmt = con.prepareStatement("explain " + sql);
+        for (int i = 0; i < params.length; i++) {
+            stmt.setObject(i + 1, params[i]);
+        }
+        ResultSet rs = stmt.executeQuery();
+        assertTrue(rs.next());
+        String plan = rs.getString(1);
+        rs.close();
+        stmt.close();
+        return plan;
+    }
+
+    /**
+     * asserts the plan does not scan the table and uses one of the given indexes if any are given
+     *
+     * @param plan      H2 plan
+     * @param indexList expected index names
+     */
+    private static void assertIndex(String plan, String... indexList) {
+        assertFalse(plan, plan.contains(".tableScan"));
+        if (indexList.length > 0) {
+            boolean found = false;
+            for (String index : indexList) {
+                found = found || plan.contains("PUBLIC." + index + ":");
+            }
+            assertTrue(plan, found);
+        }
+    }
+}